@@ -63,11 +63,34 @@ public class Catalog {
     public void addTable(DbFile file, String name, String pkeyField) {
         CataLogEntry entry = new CataLogEntry(file, name, pkeyField);
         int id = file.getId();
-        cataLogEntries.put(id, entry);
+        CataLogEntry replaced = cataLogEntries.put(id, entry);
+        if (replaced != null && replaced.file != file)
+            close(replaced.file); // 同一个id换了DbFile, 旧的文件句柄不会再用
         idList.add(id);
         nameIdMap.put(name,id);
     }
 
+    /**
+     * Add a new table to the catalog, choosing whether its pages are read
+     * through a memory mapping of the table file. Only HeapFiles support the
+     * memory-mapped mode; it suits read-mostly tables.
+     *
+     * @param file         the contents of the table to add
+     * @param name         the name of the table
+     * @param pkeyField    the name of the primary key field
+     * @param memoryMapped true to read the table through a memory mapping
+     * @throws IllegalArgumentException if memoryMapped is set and file is not a HeapFile
+     * @see HeapFile#setMemoryMapped(boolean)
+     */
+    public void addTable(DbFile file, String name, String pkeyField, boolean memoryMapped) {
+        if (file instanceof HeapFile) {
+            ((HeapFile) file).setMemoryMapped(memoryMapped);
+        } else if (memoryMapped) {
+            throw new IllegalArgumentException("only HeapFiles can be memory-mapped");
+        }
+        addTable(file, name, pkeyField);
+    }
+
     public void addTable(DbFile file, String name) {
         addTable(file, name, "");
     }
@@ -148,18 +171,29 @@ public class Catalog {
     }
 
     /**
-     * Delete all tables from the catalog
+     * Delete all tables from the catalog, closing their files
      */
     public void clear() {
+        for (CataLogEntry entry : cataLogEntries.values())
+            close(entry.file);
         cataLogEntries.clear();
         idList.clear();
         nameIdMap.clear();
     }
 
+    private static void close(DbFile file) {
+        try {
+            file.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
      *
      * @param catalogFile
+     * @throws IllegalArgumentException if a table has an option other than mmap
      */
     public void loadSchema(String catalogFile) {
         String line = "";
@@ -168,7 +202,7 @@ public class Catalog {
             BufferedReader br = new BufferedReader(new FileReader(catalogFile));
 
             while ((line = br.readLine()) != null) {
-                //assume line is of the format name (field type, field type, ...)
+                //assume line is of the format name (field type, field type, ...) [mmap]
                 String name = line.substring(0, line.indexOf("(")).trim();
                 //System.out.println("TABLE NAME: " + name);
                 String fields = line.substring(line.indexOf("(") + 1, line.indexOf(")")).trim();
@@ -199,8 +233,15 @@ public class Catalog {
                 Type[] typeAr = types.toArray(new Type[0]);
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
+                // 括号后面跟着 mmap 表示这张表用内存映射的方式读
+                String options = line.substring(line.indexOf(")") + 1).trim();
+                boolean memoryMapped = false;
+                if (options.equalsIgnoreCase("mmap"))
+                    memoryMapped = true;
+                else if (!options.isEmpty())
+                    throw new IllegalArgumentException("Unknown table option " + options + " for table " + name);
                 HeapFile tabHf = new HeapFile(new File(baseFolder + "/" + name + ".dat"), t);
-                addTable(tabHf, name, primaryKey);
+                addTable(tabHf, name, primaryKey, memoryMapped);
                 System.out.println("Added table : " + name + " with schema " + t);
             }
         } catch (IOException e) {
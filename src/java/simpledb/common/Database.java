@@ -65,11 +65,19 @@ public class Database {
      * return it
      */
     public static BufferPool resetBufferPool(int pages) {
+        return resetBufferPool(new BufferPool(pages));
+    }
+
+    /**
+     * Replaces the buffer pool with the given one, for example one built
+     * with a different replacement or deadlock policy. Used for testing.
+     */
+    public static BufferPool resetBufferPool(BufferPool pool) {
         java.lang.reflect.Field bufferPoolF = null;
         try {
             bufferPoolF = Database.class.getDeclaredField("_bufferpool");
             bufferPoolF.setAccessible(true);
-            bufferPoolF.set(_instance.get(), new BufferPool(pages));
+            bufferPoolF.set(_instance.get(), pool);
         } catch (NoSuchFieldException | IllegalAccessException | IllegalArgumentException | SecurityException e) {
             e.printStackTrace();
         }
@@ -79,7 +87,8 @@ public class Database {
 
     // reset the database, used for unit tests only.
     public static void reset() {
-        _instance.set(new Database());
+        Database old = _instance.getAndSet(new Database());
+        old._catalog.clear(); // 关掉旧目录里各个表的文件
     }
 
 }
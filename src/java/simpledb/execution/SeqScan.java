@@ -3,7 +3,9 @@ package simpledb.execution;
 import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Type;
+import simpledb.storage.DbFile;
 import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapFile;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 import simpledb.transaction.TransactionAbortedException;
@@ -83,7 +85,13 @@ public class SeqScan implements OpIterator {
 
     public void open() throws DbException, TransactionAbortedException {
         // 一定要先赋值, 确保 接下来所有 iterator 的调用是同一个 !!!
-        this.iterator = Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
+        DbFile file = Database.getCatalog().getDatabaseFile(tableid);
+        // 比缓存池四分之一还大的表走私有的缓冲环, 免得一次全表扫描把热页都挤出去
+        if (file instanceof HeapFile
+                && ((HeapFile) file).numPages() > Database.getBufferPool().getNumPages() / 4)
+            this.iterator = ((HeapFile) file).iterator(tid, Database.getBufferPool().newBufferRing());
+        else
+            this.iterator = file.iterator(tid);
         iterator.open();
     }
 
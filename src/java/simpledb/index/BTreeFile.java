@@ -42,6 +42,7 @@ public class BTreeFile implements DbFile {
     private final TupleDesc td;
     private final int tableid;
     private final int keyField;
+    private final DbFileChannel channel;
 
     /**
      * Constructs a B+ tree file backed by the specified file.
@@ -56,6 +57,7 @@ public class BTreeFile implements DbFile {
         this.tableid = f.getAbsoluteFile().hashCode();
         this.keyField = key;
         this.td = td;
+        this.channel = new DbFileChannel(f);
     }
 
     /**
@@ -87,6 +89,11 @@ public class BTreeFile implements DbFile {
         return td;
     }
 
+    // see DbFile.java for javadocs
+    public void close() throws IOException {
+        channel.close();
+    }
+
     /**
      * Read a page from the file on disk. This should not be called directly
      * but should be called from the BufferPool via getPage()
@@ -97,10 +104,10 @@ public class BTreeFile implements DbFile {
     public Page readPage(PageId pid) {
         BTreePageId id = (BTreePageId) pid;
 
-        try (BufferedInputStream bis = new BufferedInputStream(new FileInputStream(f))) {
+        try {
             if (id.pgcateg() == BTreePageId.ROOT_PTR) {
                 byte[] pageBuf = new byte[BTreeRootPtrPage.getPageSize()];
-                int retval = bis.read(pageBuf, 0, BTreeRootPtrPage.getPageSize());
+                int retval = channel.read(pageBuf, 0);
                 if (retval == -1) {
                     throw new IllegalArgumentException("Read past end of table");
                 }
@@ -112,12 +119,7 @@ public class BTreeFile implements DbFile {
                 return new BTreeRootPtrPage(id, pageBuf);
             } else {
                 byte[] pageBuf = new byte[BufferPool.getPageSize()];
-                if (bis.skip(BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber() - 1) * BufferPool.getPageSize()) !=
-                        BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber() - 1) * BufferPool.getPageSize()) {
-                    throw new IllegalArgumentException(
-                            "Unable to seek to correct place in BTreeFile");
-                }
-                int retval = bis.read(pageBuf, 0, BufferPool.getPageSize());
+                int retval = channel.read(pageBuf, pageOffset(id.getPageNumber()));
                 if (retval == -1) {
                     throw new IllegalArgumentException("Read past end of table");
                 }
@@ -137,8 +139,13 @@ public class BTreeFile implements DbFile {
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
-        // Close the file on success or error
-        // Ignore failures closing the file
+    }
+
+    /**
+     * @return the file offset of the given non-root-pointer page
+     */
+    private static long pageOffset(int pgNo) {
+        return BTreeRootPtrPage.getPageSize() + (long) (pgNo - 1) * BufferPool.getPageSize();
     }
 
     /**
@@ -151,14 +158,10 @@ public class BTreeFile implements DbFile {
         BTreePageId id = (BTreePageId) page.getId();
 
         byte[] data = page.getPageData();
-        RandomAccessFile rf = new RandomAccessFile(f, "rw");
         if (id.pgcateg() == BTreePageId.ROOT_PTR) {
-            rf.write(data);
-            rf.close();
+            channel.write(data, 0);
         } else {
-            rf.seek(BTreeRootPtrPage.getPageSize() + (long) (page.getId().getPageNumber() - 1) * BufferPool.getPageSize());
-            rf.write(data);
-            rf.close();
+            channel.write(data, pageOffset(id.getPageNumber()));
         }
     }
 
@@ -1073,13 +1076,10 @@ public class BTreeFile implements DbFile {
         synchronized (this) {
             if (f.length() == 0) {
                 // create the root pointer page and the root page
-                BufferedOutputStream bw = new BufferedOutputStream(
-                        new FileOutputStream(f, true));
                 byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
                 byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
-                bw.write(emptyRootPtrData);
-                bw.write(emptyLeafData);
-                bw.close();
+                channel.write(emptyRootPtrData, 0);
+                channel.write(emptyLeafData, emptyRootPtrData.length);
             }
         }
 
@@ -1133,11 +1133,8 @@ public class BTreeFile implements DbFile {
         if (headerId == null) {
             synchronized (this) {
                 // create the new page
-                BufferedOutputStream bw = new BufferedOutputStream(
-                        new FileOutputStream(f, true));
                 byte[] emptyData = BTreeInternalPage.createEmptyPageData();
-                bw.write(emptyData);
-                bw.close();
+                channel.write(emptyData, channel.size());
                 emptyPageNo = numPages();
             }
         }
@@ -1167,10 +1164,7 @@ public class BTreeFile implements DbFile {
         BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
 
         // write empty page to disk
-        RandomAccessFile rf = new RandomAccessFile(f, "rw");
-        rf.seek(BTreeRootPtrPage.getPageSize() + (long) (emptyPageNo - 1) * BufferPool.getPageSize());
-        rf.write(BTreePage.createEmptyPageData());
-        rf.close();
+        channel.write(BTreePage.createEmptyPageData(), pageOffset(emptyPageNo));
 
         // make sure the page is not in the buffer pool	or in the local cache
         Database.getBufferPool().removePage(newPageId);
@@ -22,6 +22,7 @@ import java.util.Arrays;
 public class BTreeHeaderPage implements Page {
     private volatile boolean dirty = false;
     private volatile TransactionId dirtier = null;
+    private volatile long lsn = -1; // pageLSN, kept in memory only
 
     final static int INDEX_SIZE = Type.INT_TYPE.getLen();
 
@@ -32,7 +33,7 @@ public class BTreeHeaderPage implements Page {
     private int nextPage; // next header page or 0
     private int prevPage; // previous header page or 0
 
-    byte[] oldData;
+    byte[] oldData; // null: the before-image is the current content
     private final Byte oldDataLock = (byte) 0;
 
     /**
@@ -77,6 +78,7 @@ public class BTreeHeaderPage implements Page {
      * Initially mark all slots in the header used.
      */
     public void init() {
+        captureBeforeImage();
         Arrays.fill(header, (byte) 0xFF);
     }
 
@@ -104,7 +106,7 @@ public class BTreeHeaderPage implements Page {
         try {
             byte[] oldDataRef = null;
             synchronized (oldDataLock) {
-                oldDataRef = oldData;
+                oldDataRef = oldData != null ? oldData : getPageData();
             }
             return new BTreeHeaderPage(pid, oldDataRef);
         } catch (IOException e) {
@@ -115,9 +117,20 @@ public class BTreeHeaderPage implements Page {
         return null;
     }
 
+    /**
+     * Saves the current content as the before-image, unless one is already
+     * saved. Called first by every mutator, so a clean page holds no copy.
+     */
+    private void captureBeforeImage() {
+        synchronized (oldDataLock) {
+            if (oldData == null)
+                oldData = getPageData();
+        }
+    }
+
     public void setBeforeImage() {
         synchronized (oldDataLock) {
-            oldData = getPageData().clone();
+            oldData = null;
         }
     }
 
@@ -222,6 +235,7 @@ public class BTreeHeaderPage implements Page {
      * @throws DbException
      */
     public void setPrevPageId(BTreePageId id) throws DbException {
+        captureBeforeImage();
         if (id == null) {
             prevPage = 0;
         } else {
@@ -242,6 +256,7 @@ public class BTreeHeaderPage implements Page {
      * @throws DbException
      */
     public void setNextPageId(BTreePageId id) throws DbException {
+        captureBeforeImage();
         if (id == null) {
             nextPage = 0;
         } else {
@@ -260,6 +275,7 @@ public class BTreeHeaderPage implements Page {
      * that did the dirtying
      */
     public void markDirty(boolean dirty, TransactionId tid) {
+        if (dirty) captureBeforeImage();
         this.dirty = dirty;
         if (dirty) this.dirtier = tid;
     }
@@ -274,6 +290,14 @@ public class BTreeHeaderPage implements Page {
             return null;
     }
 
+    public long getLSN() {
+        return lsn;
+    }
+
+    public void setLSN(long lsn) {
+        this.lsn = lsn;
+    }
+
     /**
      * Returns true if the page of the BTreeFile associated with slot i is used
      */
@@ -287,6 +311,7 @@ public class BTreeHeaderPage implements Page {
      * Abstraction to mark a page of the BTreeFile used or unused
      */
     public void markSlotUsed(int i, boolean value) {
+        captureBeforeImage();
         int headerbit = i % 8;
         int headerbyte = (i - headerbit) / 8;
 
@@ -147,11 +147,7 @@ public class BTreeInternalPage extends BTreePage {
      */
     public BTreeInternalPage getBeforeImage() {
         try {
-            byte[] oldDataRef = null;
-            synchronized (oldDataLock) {
-                oldDataRef = oldData;
-            }
-            return new BTreeInternalPage(pid, oldDataRef, keyField);
+            return new BTreeInternalPage(pid, beforeImageData(), keyField);
         } catch (IOException e) {
             e.printStackTrace();
             //should never happen -- we parsed it OK before!
@@ -160,12 +156,6 @@ public class BTreeInternalPage extends BTreePage {
         return null;
     }
 
-    public void setBeforeImage() {
-        synchronized (oldDataLock) {
-            oldData = getPageData().clone();
-        }
-    }
-
     /**
      * Read keys from the source file.
      */
@@ -383,6 +373,7 @@ public class BTreeInternalPage extends BTreePage {
      *                     already empty.
      */
     public void deleteKeyAndRightChild(BTreeEntry e) throws DbException {
+        captureBeforeImage();
         deleteEntry(e, true);
     }
 
@@ -397,6 +388,7 @@ public class BTreeInternalPage extends BTreePage {
      *                     already empty.
      */
     public void deleteKeyAndLeftChild(BTreeEntry e) throws DbException {
+        captureBeforeImage();
         deleteEntry(e, false);
     }
 
@@ -410,6 +402,7 @@ public class BTreeInternalPage extends BTreePage {
      *                     order on the page
      */
     public void updateEntry(BTreeEntry e) throws DbException {
+        captureBeforeImage();
         RecordId rid = e.getRecordId();
         if (rid == null)
             throw new DbException("tried to update entry with null rid");
@@ -453,6 +446,7 @@ public class BTreeInternalPage extends BTreePage {
      *                     table id, or child page category is a mismatch, or the entry is invalid
      */
     public void insertEntry(BTreeEntry e) throws DbException {
+        captureBeforeImage();
         if (!e.getKey().getType().equals(td.getFieldType(keyField)))
             throw new DbException("key field type mismatch, in insertEntry");
 
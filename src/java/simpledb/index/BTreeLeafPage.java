@@ -6,6 +6,7 @@ import simpledb.storage.*;
 
 import java.io.*;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
 
 /**
@@ -15,7 +16,7 @@ import java.util.NoSuchElementException;
  * @see BTreeFile
  * @see BufferPool
  */
-public class BTreeLeafPage extends BTreePage {
+public class BTreeLeafPage extends BTreePage implements SlottedPage {
     private final byte[] header;
     private final Tuple[] tuples;
     private final int numSlots;
@@ -23,6 +24,8 @@ public class BTreeLeafPage extends BTreePage {
     private int leftSibling; // leaf node or 0
     private int rightSibling; // leaf node or 0
 
+    private final SlotWriteLog slotWrites = new SlotWriteLog(); // slot writes since the page was last logged
+
     public void checkRep(int fieldid, Field lowerBound, Field upperBound, boolean checkoccupancy, int depth) {
         Field prev = lowerBound;
         assert (this.getId().pgcateg() == BTreePageId.LEAF);
@@ -133,11 +136,7 @@ public class BTreeLeafPage extends BTreePage {
      */
     public BTreeLeafPage getBeforeImage() {
         try {
-            byte[] oldDataRef = null;
-            synchronized (oldDataLock) {
-                oldDataRef = oldData;
-            }
-            return new BTreeLeafPage(pid, oldDataRef, keyField);
+            return new BTreeLeafPage(pid, beforeImageData(), keyField);
         } catch (IOException e) {
             e.printStackTrace();
             //should never happen -- we parsed it OK before!
@@ -146,12 +145,6 @@ public class BTreeLeafPage extends BTreePage {
         return null;
     }
 
-    public void setBeforeImage() {
-        synchronized (oldDataLock) {
-            oldData = getPageData().clone();
-        }
-    }
-
     /**
      * Read tuples from the source file.
      */
@@ -287,6 +280,7 @@ public class BTreeLeafPage extends BTreePage {
      *                     already empty.
      */
     public void deleteTuple(Tuple t) throws DbException {
+        captureBeforeImage();
         RecordId rid = t.getRecordId();
         if (rid == null)
             throw new DbException("tried to delete tuple with null rid");
@@ -294,6 +288,8 @@ public class BTreeLeafPage extends BTreePage {
             throw new DbException("tried to delete tuple on invalid page or table");
         if (!isSlotUsed(rid.getTupleNumber()))
             throw new DbException("tried to delete null tuple.");
+        if (slotWrites.tracking())
+            slotWrites.add(new SlotWrite(rid.getTupleNumber(), SlotWrite.encode(tuples[rid.getTupleNumber()]), null));
         markSlotUsed(rid.getTupleNumber(), false);
         t.setRecordId(null);
     }
@@ -308,6 +304,7 @@ public class BTreeLeafPage extends BTreePage {
      *                     is mismatch.
      */
     public void insertTuple(Tuple t) throws DbException {
+        captureBeforeImage();
         if (!t.getTupleDesc().equals(td))
             throw new DbException("type mismatch, in addTuple");
 
@@ -356,6 +353,8 @@ public class BTreeLeafPage extends BTreePage {
         RecordId rid = new RecordId(pid, goodSlot);
         t.setRecordId(rid);
         tuples[goodSlot] = t;
+        if (slotWrites.tracking())
+            slotWrites.add(new SlotWrite(goodSlot, null, SlotWrite.encode(t)));
     }
 
     /**
@@ -369,9 +368,35 @@ public class BTreeLeafPage extends BTreePage {
             tuples[to] = tuples[from];
             tuples[to].setRecordId(rid);
             markSlotUsed(from, false);
+            if (slotWrites.tracking()) {
+                byte[] moved = SlotWrite.encode(tuples[to]);
+                slotWrites.add(new SlotWrite(to, null, moved));
+                slotWrites.add(new SlotWrite(from, moved, null));
+            }
+        }
+    }
+
+    public List<SlotWrite> drainSlotWrites() {
+        return slotWrites.drain();
+    }
+
+    public void writeSlot(int slot, byte[] data) {
+        if (data == null) {
+            markSlotUsed(slot, false);
+        } else {
+            Tuple t = SlotWrite.decode(td, data);
+            t.setRecordId(new RecordId(pid, slot));
+            tuples[slot] = t;
+            markSlotUsed(slot, true);
         }
     }
 
+    @Override
+    public void setParentId(BTreePageId id) throws DbException {
+        super.setParentId(id);
+        slotWrites.untracked();
+    }
+
     /**
      * Get the id of the left sibling of this page
      *
@@ -403,6 +428,7 @@ public class BTreeLeafPage extends BTreePage {
      * @throws DbException if the id is not valid
      */
     public void setLeftSiblingId(BTreePageId id) throws DbException {
+        captureBeforeImage();
         if (id == null) {
             leftSibling = 0;
         } else {
@@ -414,6 +440,7 @@ public class BTreeLeafPage extends BTreePage {
             }
             leftSibling = id.getPageNumber();
         }
+        slotWrites.untracked();
     }
 
     /**
@@ -423,6 +450,7 @@ public class BTreeLeafPage extends BTreePage {
      * @throws DbException if the id is not valid
      */
     public void setRightSiblingId(BTreePageId id) throws DbException {
+        captureBeforeImage();
         if (id == null) {
             rightSibling = 0;
         } else {
@@ -434,6 +462,7 @@ public class BTreeLeafPage extends BTreePage {
             }
             rightSibling = id.getPageNumber();
         }
+        slotWrites.untracked();
     }
 
     /**
@@ -19,6 +19,7 @@ import simpledb.transaction.TransactionId;
 public abstract class BTreePage implements Page {
     protected volatile boolean dirty = false;
     protected volatile TransactionId dirtier = null;
+    protected volatile long lsn = -1; // pageLSN, kept in memory only
 
     protected final static int INDEX_SIZE = Type.INT_TYPE.getLen();
 
@@ -27,7 +28,7 @@ public abstract class BTreePage implements Page {
     protected final int keyField;
 
     protected int parent; // parent is always internal node or 0 for root node
-    protected byte[] oldData;
+    protected byte[] oldData; // null: the before-image is the current content
     protected final Byte oldDataLock = (byte) 0;
 
     /**
@@ -99,6 +100,7 @@ public abstract class BTreePage implements Page {
      * @throws DbException if the id is not valid
      */
     public void setParentId(BTreePageId id) throws DbException {
+        captureBeforeImage();
         if (id == null) {
             throw new DbException("parent id must not be null");
         }
@@ -115,11 +117,39 @@ public abstract class BTreePage implements Page {
         }
     }
 
+    /**
+     * Saves the current content as the before-image, unless one is already
+     * saved. Every mutator calls this first (copy-on-first-write), so pages
+     * that are only read never hold a second copy of their data.
+     */
+    protected void captureBeforeImage() {
+        synchronized (oldDataLock) {
+            if (oldData == null)
+                oldData = getPageData();
+        }
+    }
+
+    /**
+     * @return the serialized before-image of this page
+     */
+    protected byte[] beforeImageData() {
+        synchronized (oldDataLock) {
+            return oldData != null ? oldData : getPageData();
+        }
+    }
+
+    public void setBeforeImage() {
+        synchronized (oldDataLock) {
+            oldData = null;
+        }
+    }
+
     /**
      * Marks this page as dirty/not dirty and record that transaction
      * that did the dirtying
      */
     public void markDirty(boolean dirty, TransactionId tid) {
+        if (dirty) captureBeforeImage();
         this.dirty = dirty;
         if (dirty) this.dirtier = tid;
     }
@@ -134,6 +164,14 @@ public abstract class BTreePage implements Page {
             return null;
     }
 
+    public long getLSN() {
+        return lsn;
+    }
+
+    public void setLSN(long lsn) {
+        this.lsn = lsn;
+    }
+
     /**
      * Returns the number of empty slots on this page.
      */
@@ -19,6 +19,7 @@ public class BTreeRootPtrPage implements Page {
 
     private boolean dirty = false;
     private TransactionId dirtier = null;
+    private volatile long lsn = -1; // pageLSN, kept in memory only
 
     private final BTreePageId pid;
 
@@ -26,7 +27,7 @@ public class BTreeRootPtrPage implements Page {
     private int rootCategory;
     private int header;
 
-    private byte[] oldData;
+    private byte[] oldData; // null: the before-image is the current content
 
     /**
      * Constructor.
@@ -51,8 +52,14 @@ public class BTreeRootPtrPage implements Page {
         setBeforeImage();
     }
 
-    public void setBeforeImage() {
-        oldData = getPageData().clone();
+    public synchronized void setBeforeImage() {
+        oldData = null;
+    }
+
+    /* copy-on-first-write: save the current content before the first change */
+    private synchronized void captureBeforeImage() {
+        if (oldData == null)
+            oldData = getPageData();
     }
 
     /**
@@ -130,6 +137,7 @@ public class BTreeRootPtrPage implements Page {
     }
 
     public void markDirty(boolean dirty, TransactionId tid) {
+        if (dirty) captureBeforeImage();
         this.dirty = dirty;
         if (dirty) this.dirtier = tid;
     }
@@ -141,13 +149,25 @@ public class BTreeRootPtrPage implements Page {
             return null;
     }
 
+    public long getLSN() {
+        return lsn;
+    }
+
+    public void setLSN(long lsn) {
+        this.lsn = lsn;
+    }
+
     /**
      * Return a view of this page before it was modified
      * -- used by recovery
      */
     public BTreeRootPtrPage getBeforeImage() {
         try {
-            return new BTreeRootPtrPage(pid, oldData);
+            byte[] oldDataRef;
+            synchronized (this) {
+                oldDataRef = oldData != null ? oldData : getPageData();
+            }
+            return new BTreeRootPtrPage(pid, oldDataRef);
         } catch (IOException e) {
             e.printStackTrace();
             //should never happen -- we parsed it OK before!
@@ -175,6 +195,7 @@ public class BTreeRootPtrPage implements Page {
      * @throws DbException if the id is invalid
      */
     public void setRootId(BTreePageId id) throws DbException {
+        captureBeforeImage();
         if (id == null) {
             root = 0;
         } else {
@@ -208,6 +229,7 @@ public class BTreeRootPtrPage implements Page {
      * @throws DbException if the id is invalid
      */
     public void setHeaderId(BTreePageId id) throws DbException {
+        captureBeforeImage();
         if (id == null) {
             header = 0;
         } else {
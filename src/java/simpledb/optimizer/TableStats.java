@@ -99,7 +99,7 @@ public class TableStats {
         histograms = new ArrayList<>();
         for(int i=0; i<numFields; i++)
             histograms.add(null);
-        DbFileIterator it = file.iterator(new TransactionId());
+        DbFileIterator it = scanIterator();
         HashMap<Integer,MyPair> histogramMap = null;
         try{
             this.ntup = 0;
@@ -126,6 +126,16 @@ public class TableStats {
         it.close();
     }
 
+    /**
+     * Statistics scans read the whole table once, so heap files are read
+     * through a BufferRing to keep the scan from flushing the BufferPool.
+     */
+    private DbFileIterator scanIterator() {
+        if (file instanceof HeapFile)
+            return ((HeapFile) file).iterator(new TransactionId(), Database.getBufferPool().newBufferRing());
+        return file.iterator(new TransactionId());
+    }
+
     private static class MyPair{
         Integer key,value;
 
@@ -198,7 +208,7 @@ public class TableStats {
 
     private Object getHistogram(int field){
         if(histograms.get(field) == null){
-            DbFileIterator it = file.iterator(new TransactionId());
+            DbFileIterator it = scanIterator();
             try{
                 it.open();
                 Type type = file.getTupleDesc().getFieldType(field);
@@ -7,11 +7,18 @@ import simpledb.common.DbException;
 import simpledb.common.Permissions;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
+import simpledb.transaction.DeadlockPolicy;
+import simpledb.transaction.LockMode;
 import simpledb.transaction.TxLockManager;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /**
@@ -43,19 +50,137 @@ public class BufferPool {
     private final int numPages; //  表示当前缓存池的容量
 
     private ConcurrentHashMap<PageId,Page> pageMap; // 根据 PageId 和 Page 做映射
-    private ConcurrentHashMap<PageId,Integer> lruMap; // 保存page的访问次数
+    private final ReplacementPolicy replacementPolicy; // 决定驱除哪一个page
     public TxLockManager txLockManager;
 
+    // 预读用的后台线程, 所有BufferPool共用, daemon线程不会阻止JVM退出
+    private static final ExecutorService READ_AHEAD = Executors.newFixedThreadPool(2, r -> {
+        Thread t = new Thread(r, "simpledb-read-ahead");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /** pages being read from disk right now, by a getPage miss or read-ahead; others wait instead of reading again. guarded by this */
+    private final Map<PageId, CompletableFuture<Void>> inFlight = new HashMap<>();
+    /** frames set aside for getPage misses whose read is in progress. guarded by this */
+    private int reservedFrames = 0;
+    /** cached pages that belong to a BufferRing and not to the replacement policy */
+    private final Map<PageId, BufferRing> ringOwner = new ConcurrentHashMap<>();
+    /** pages read ahead that nobody has asked for yet */
+    private final Set<PageId> prefetched = ConcurrentHashMap.newKeySet();
+    private final AtomicLong prefetchedPages = new AtomicLong();
+    private final AtomicLong prefetchHits = new AtomicLong();
+    private final AtomicLong wastedPrefetches = new AtomicLong();
+    // 每次有页写回磁盘或从缓存中丢弃时加一; 预读期间如果变了, 读到的内容可能已经过时
+    private final AtomicLong diskVersion = new AtomicLong();
+    // 批量导入绕过缓存池直接追加到文件的页, 事务中止时要清空
+    private final Map<TransactionId, List<PageId>> appendedPages = new ConcurrentHashMap<>();
+    // STEAL: 没有干净页可驱逐时, 可以把还没提交的脏页记好日志后写回磁盘
+    private volatile boolean steal = true;
+    // 被偷写回磁盘的页, 按事务记录; 中止时要从日志回滚
+    private final Map<TransactionId, Set<PageId>> stolenPages = new ConcurrentHashMap<>();
+    // NO-FORCE: 提交时只写日志不写页
+    private volatile boolean forceOnCommit = true;
+    // 已提交但还没写回磁盘的页, 驱逐或检查点时再写; 值是recLSN: 上次写回后第一条改它的日志记录
+    private final Map<PageId, Long> committedDirty = new ConcurrentHashMap<>();
+
     /**
-     * Creates a BufferPool that caches up to numPages pages.
+     * Creates a BufferPool that caches up to numPages pages, using CLOCK
+     * replacement.
      *
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
+        this(numPages, new ClockReplacementPolicy(numPages));
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages and picks
+     * eviction victims with the given policy.
+     *
+     * @param numPages          maximum number of pages in this buffer pool.
+     * @param replacementPolicy the policy deciding which page to evict; it
+     *                          must be able to track numPages pages.
+     */
+    public BufferPool(int numPages, ReplacementPolicy replacementPolicy) {
+        this(numPages, replacementPolicy, DeadlockPolicy.DETECT);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages, picks eviction
+     * victims with the given policy and handles deadlocks between
+     * transactions waiting for page locks with the given deadlock policy.
+     *
+     * @param numPages          maximum number of pages in this buffer pool.
+     * @param replacementPolicy the policy deciding which page to evict; it
+     *                          must be able to track numPages pages.
+     * @param deadlockPolicy    how the lock manager detects or prevents
+     *                          deadlocks
+     */
+    public BufferPool(int numPages, ReplacementPolicy replacementPolicy, DeadlockPolicy deadlockPolicy) {
         this.numPages = numPages;
         this.pageMap = new ConcurrentHashMap<>();
-        this.lruMap = new ConcurrentHashMap<>();
-        this.txLockManager = new TxLockManager();
+        this.replacementPolicy = replacementPolicy;
+        this.txLockManager = new TxLockManager(deadlockPolicy);
+    }
+
+    /**
+     * @return the maximum number of pages in this buffer pool
+     */
+    public int getNumPages() {
+        return numPages;
+    }
+
+    /**
+     * Turns the STEAL policy on or off. With STEAL (the default), when every
+     * page in the pool is dirty, evictPage writes out a dirty page of a
+     * running transaction after logging and forcing its UPDATE record, so
+     * that transactions can touch more pages than the pool holds. Aborting
+     * such a transaction rolls the page back from the log. Only transactions
+     * that logged a BEGIN record can have pages stolen.
+     *
+     * @param steal false to never evict dirty pages (NO STEAL)
+     */
+    public void setSteal(boolean steal) {
+        this.steal = steal;
+    }
+
+    /**
+     * @return true if dirty pages of running transactions may be evicted
+     */
+    public boolean isSteal() {
+        return steal;
+    }
+
+    /**
+     * Chooses between FORCE and NO-FORCE commits. With FORCE (the default),
+     * committing a transaction logs and writes each page it dirtied. With
+     * NO-FORCE, commit only appends an UPDATE record with the after-image of
+     * each such page, so its cost does not grow with the pages written; the
+     * pages stay in the pool and reach disk when they are evicted or at the
+     * next checkpoint, and recovery redoes them from the log after a crash.
+     *
+     * @param force true to write a transaction's pages to disk on commit
+     */
+    public void setForceOnCommit(boolean force) {
+        this.forceOnCommit = force;
+    }
+
+    /**
+     * @return true if commit writes the transaction's pages to disk
+     */
+    public boolean isForceOnCommit() {
+        return forceOnCommit;
+    }
+
+    /**
+     * Returns the dirty page table: every page whose logged changes are not
+     * on disk yet, with its recLSN, the LSN of the first log record that
+     * changed it since it was last written. Checkpoints save this table so
+     * recovery knows where redo has to start.
+     */
+    public Map<PageId, Long> getDirtyPageTable() {
+        return new HashMap<>(committedDirty);
     }
 
     public static int getPageSize() {
@@ -89,31 +214,300 @@ public class BufferPool {
      */
     public Page getPage(TransactionId tid, PageId pid, Permissions perm)
             throws TransactionAbortedException, DbException {
+        return getPage(tid, pid, perm, null);
+    }
+
+    /**
+     * Retrieve the specified page like {@link #getPage(TransactionId, PageId, Permissions)},
+     * but through a bulk-access ring. A page read from disk goes into the
+     * ring instead of the replacement policy, reusing the ring's oldest frame
+     * once the ring is full; a cache hit does not count as an access. Bulk
+     * readers such as large scans use this so they do not flush the pool.
+     *
+     * @param tid  the ID of the transaction requesting the page
+     * @param pid  the ID of the requested page
+     * @param perm the requested permissions on the page
+     * @param ring the ring to read through, or null for the normal path
+     */
+    public Page getPage(TransactionId tid, PageId pid, Permissions perm, BufferRing ring)
+            throws TransactionAbortedException, DbException {
             try {
                 // 获取线程池
                 // Future用于执行多线程的执行结果
-                txLockManager.acquireLock(tid,pid,perm,System.currentTimeMillis(),0);
+                txLockManager.acquireLock(tid, pid, perm);
             }catch (Exception e){
                 throw new TransactionAbortedException();
             }
         // permission 保证
         Page page = pageMap.get(pid);
         if(page != null)  {
-            lruMap.merge(pid,1,Integer::sum);
+            recordHit(pid, ring);
             return page;
         }
-        // 如果容量已满, 就要执行驱除
-        if(pageMap.size() == numPages){
-            evictPage();
+        CompletableFuture<Void> mine;
+        while (true) {
+            CompletableFuture<Void> pending;
+            synchronized (this) {
+                // 可能在等待的时候已经被其他线程读进来了
+                page = pageMap.get(pid);
+                if (page != null) {
+                    recordHit(pid, ring);
+                    return page;
+                }
+                pending = inFlight.get(pid);
+                if (pending == null) {
+                    if (ring != null) {
+                        recycleRingSlot(ring);
+                    }
+                    // 如果容量已满, 就要执行驱除; 先占住一个帧, 读盘时不拿着缓存池的锁
+                    if (isFull()) {
+                        evictPage();
+                    }
+                    reservedFrames++;
+                    mine = new CompletableFuture<>();
+                    inFlight.put(pid, mine);
+                    break;
+                }
+            }
+            // 这一页正在被别人读, 等它读完而不是再读一次
+            pending.join();
+        }
+        page = null;
+        try {
+            page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+        } finally {
+            synchronized (this) {
+                reservedFrames--;
+                if (page != null) {
+                    pageMap.put(pid, page);
+                    admit(pid, ring);
+                }
+                inFlight.remove(pid, mine);
+            }
+            mine.complete(null); // 读失败时, 等着的线程会自己再读
         }
-        boolean isLocked = txLockManager.acquireLock(tid, pid, perm, System.currentTimeMillis(), 0);
-        if (!isLocked) throw new TransactionAbortedException();
-        page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
-        pageMap.put(page.getId(), page);
-        lruMap.merge(pid,1,Integer::sum);
         return page;
     }
 
+    /* True if caching one more page needs an eviction first. guarded by this */
+    private boolean isFull() {
+        return pageMap.size() + reservedFrames >= numPages;
+    }
+
+    /* Bookkeeping for a cache hit. */
+    private void recordHit(PageId pid, BufferRing ring) {
+        if (prefetched.remove(pid)) prefetchHits.incrementAndGet();
+        if (ring != null)
+            return; // 批量扫描的命中不算访问, 不去抬高页的热度
+        if (ringOwner.containsKey(pid))
+            promote(pid); // 普通访问命中了环里的页, 说明它不只是被扫一遍
+        else
+            replacementPolicy.recordAccess(pid);
+    }
+
+    /* Hand a freshly cached page to the ring or to the replacement policy. guarded by this */
+    private void admit(PageId pid, BufferRing ring) {
+        if (ring != null) {
+            ring.place(pid);
+            ringOwner.put(pid, ring);
+        } else {
+            replacementPolicy.recordAdmit(pid);
+        }
+    }
+
+    /* Move a ring page into the main pool. */
+    private synchronized void promote(PageId pid) {
+        BufferRing owner = ringOwner.remove(pid);
+        if (owner == null) return;
+        owner.release(pid);
+        if (pageMap.containsKey(pid))
+            replacementPolicy.recordAdmit(pid);
+    }
+
+    /**
+     * Creates a ring for a bulk reader of this pool: {@link BufferRing#DEFAULT_SIZE}
+     * frames, but never more than an eighth of the pool.
+     */
+    public BufferRing newBufferRing() {
+        return new BufferRing(Math.max(1, Math.min(BufferRing.DEFAULT_SIZE, numPages / 8)));
+    }
+
+    /**
+     * Hands back a ring at the end of a scan: its clean pages leave the pool
+     * and its dirty pages move to the main pool.
+     */
+    public synchronized void releaseRing(BufferRing ring) {
+        for (PageId pid : ring.pages()) {
+            ring.release(pid);
+            if (ringOwner.remove(pid, ring))
+                dropRingPage(pid);
+        }
+    }
+
+    /**
+     * Frees the ring slot that the next page will take: a clean page in it
+     * leaves the pool, a dirty one is handed over to the main pool since it
+     * cannot be dropped. guarded by this
+     */
+    private void recycleRingSlot(BufferRing ring) {
+        PageId old = ring.nextVictim();
+        if (old == null) return;
+        ring.release(old);
+        if (ringOwner.remove(old, ring))
+            dropRingPage(old);
+    }
+
+    /* Drop a page that just left its ring, or hand it to the main pool if it is dirty. guarded by this */
+    private void dropRingPage(PageId pid) {
+        Page page = pageMap.get(pid);
+        if (page == null) return;
+        if (page.isDirty() == null) {
+            pageMap.remove(pid);
+            dropPrefetched(pid);
+        } else {
+            replacementPolicy.recordAdmit(pid);
+        }
+    }
+
+    /**
+     * Asynchronously read count pages of a HeapFile, starting at firstPgNo,
+     * into the buffer pool, with one I/O call. Other kinds of files are not
+     * read ahead.
+     * <p>
+     * Read-ahead takes no locks: the pages are only cached, and the consumer
+     * still locks each page when it calls getPage. Pages that are already
+     * cached or being read are skipped, and a getPage miss on a page that is
+     * being read ahead waits for it instead of reading it a second time.
+     * Read-ahead only uses free frames or evicts clean pages, and stops
+     * caching when there are none left. It drops the batch if any page was
+     * written back or discarded while it was being read, since it may be
+     * stale.
+     *
+     * @param tableId   the table to read from
+     * @param firstPgNo the first page to read
+     * @param count     the number of pages to read
+     * @return a Future that completes once the pages are cached or dropped,
+     *         or fails with a DbException if they could not be read
+     */
+    public Future<?> prefetch(int tableId, int firstPgNo, int count) {
+        return prefetch(tableId, firstPgNo, count, null);
+    }
+
+    /**
+     * Like {@link #prefetch(int, int, int)}, but caches the pages in the given
+     * ring instead of handing them to the replacement policy.
+     */
+    public Future<?> prefetch(int tableId, int firstPgNo, int count, BufferRing ring) {
+        return READ_AHEAD.submit(() -> {
+            DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+            if (!(file instanceof HeapFile)) return null;
+            List<PageId> claimed = claimForPrefetch(tableId, firstPgNo, count);
+            if (claimed.isEmpty()) return null;
+            try {
+                long version = diskVersion.get();
+                admitPrefetched(((HeapFile) file).readPages(claimed), version, ring);
+            } catch (IOException | RuntimeException e) {
+                // 预读只是优化: 去掉在读的标记, 消费者会自己去读
+                throw new DbException("could not read ahead pages " + firstPgNo + " to "
+                        + (firstPgNo + count - 1) + " of table " + tableId + ": " + e.getMessage());
+            } finally {
+                releasePrefetched(claimed);
+            }
+            return null;
+        });
+    }
+
+    /* Mark the pages of a HeapFile range that are neither cached nor being read as in flight. */
+    private synchronized List<PageId> claimForPrefetch(int tableId, int firstPgNo, int count) {
+        List<PageId> claimed = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            PageId pid = new HeapPageId(tableId, firstPgNo + i);
+            if (pageMap.containsKey(pid) || inFlight.containsKey(pid))
+                continue;
+            inFlight.put(pid, new CompletableFuture<>());
+            claimed.add(pid);
+        }
+        return claimed;
+    }
+
+    private synchronized void releasePrefetched(List<PageId> claimed) {
+        for (PageId pid : claimed) {
+            CompletableFuture<Void> done = inFlight.remove(pid);
+            if (done != null) done.complete(null);
+        }
+    }
+
+    private synchronized void admitPrefetched(List<Page> pages, long version, BufferRing ring) {
+        if (diskVersion.get() != version)
+            return;
+        for (Page page : pages) {
+            PageId pid = page.getId();
+            if (pageMap.containsKey(pid))
+                continue;
+            if (ring != null)
+                recycleRingSlot(ring);
+            if (isFull()) {
+                try {
+                    evictPage();
+                } catch (DbException e) {
+                    return; // 没有干净页可以驱除, 放弃剩下的
+                }
+            }
+            pageMap.put(pid, page);
+            admit(pid, ring);
+            prefetched.add(pid);
+            prefetchedPages.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return the number of pages cached by read-ahead
+     */
+    public long getPrefetchedPages() {
+        return prefetchedPages.get();
+    }
+
+    /**
+     * @return the number of read-ahead pages that were later requested
+     */
+    public long getPrefetchHits() {
+        return prefetchHits.get();
+    }
+
+    /**
+     * @return the number of read-ahead pages that left the pool unused
+     */
+    public long getWastedPrefetches() {
+        return wastedPrefetches.get();
+    }
+
+    /* Forget that a page was read ahead, counting it as wasted if nobody used it. */
+    private void dropPrefetched(PageId pid) {
+        if (prefetched.remove(pid)) wastedPrefetches.incrementAndGet();
+    }
+
+    /**
+     * Put a page handed back by a DbFile into the cache, replacing any
+     * existing version. Evicts another page first if this one is not
+     * resident yet and the pool is full.
+     */
+    private synchronized void cachePage(Page page) throws DbException {
+        PageId pid = page.getId();
+        if (pageMap.containsKey(pid)) {
+            pageMap.put(pid, page);
+            if (ringOwner.containsKey(pid))
+                promote(pid); // 脏页不能留在环里被回收
+            else
+                replacementPolicy.recordAccess(pid);
+            return;
+        }
+        if (isFull()) {
+            evictPage();
+        }
+        pageMap.put(pid, page);
+        replacementPolicy.recordAdmit(pid);
+    }
+
     /**
      * Releases the lock on a page.
      * Calling this is very risky, and may result in wrong behavior. Think hard
@@ -147,6 +541,25 @@ public class BufferPool {
         return txLockManager.hasHoldsLock(tid,p);
     }
 
+    /**
+     * Locks a whole table for tid, S for READ_ONLY and X for READ_WRITE, so
+     * that reading or writing its pages takes no page locks. A scan that
+     * knows it will read the whole table can call this instead of waiting
+     * for lock escalation.
+     */
+    public void lockTable(TransactionId tid, int tableId, Permissions perm) throws TransactionAbortedException {
+        txLockManager.acquireTableLock(tid, tableId, LockMode.of(perm));
+    }
+
+    /**
+     * Locks one tuple for tid, with intention locks on its page and table.
+     * Reading or writing the tuple still goes through getPage, which locks
+     * the page itself.
+     */
+    public void lockTuple(TransactionId tid, RecordId rid, Permissions perm) throws TransactionAbortedException {
+        txLockManager.acquireTupleLock(tid, rid, perm);
+    }
+
     /**
      * Commit or abort a given transaction; release all locks associated to
      * the transaction.
@@ -155,34 +568,62 @@ public class BufferPool {
      * @param commit a flag indicating whether we should commit or abort
      */
     public void transactionComplete(TransactionId tid, boolean commit) {
+        completePages(tid, commit);
+        releaseLocks(tid);
+    }
+
+    /**
+     * The first half of {@link #transactionComplete(TransactionId, boolean)}:
+     * on commit, log (and with FORCE write) the pages tid dirtied; on abort,
+     * put their before-images back. tid keeps its locks, so that a caller
+     * can log the COMMIT record before other transactions see the pages.
+     *
+     * @param tid    the ID of the transaction completing
+     * @param commit a flag indicating whether we should commit or abort
+     */
+    public void completePages(TransactionId tid, boolean commit) {
         String action = commit ? "提交 commit" : "终止 abort";
         System.out.println("事务"+tid.getId() +action);
         // 提交时，应该将与事务关联的脏页刷新到磁盘。
         // 中止时，应该通过将页面恢复到其磁盘上状态来恢复事务所做的任何更改。
+        // 事务改过的页都拿着写锁, 只看它锁住的页, 不扫整个缓冲池
         if(commit){
             try {
-                for (PageId pid : pageMap.keySet()) {
+                List<Page> dirtied = new ArrayList<>();
+                for (PageId pid : txLockManager.getLockedPages(tid)) {
                     Page page = pageMap.get(pid);
-                    HeapPage heapPage = (HeapPage)page;
-//                    Iterator<Tuple> iterator = heapPage.iterator();
-//                    int count = 0;
-//                    while (iterator.hasNext()){
-//                        iterator.next();
-//                        count ++;
-//                    }
-                    flushPage(pid);
-                    page.setBeforeImage();
+                    if (page == null) continue;
+                    TransactionId dirtier = page.isDirty();
+                    if (tid.equals(dirtier)) {
+                        dirtied.add(page);
+                    } else if (dirtier == null) {
+                        page.setBeforeImage();
+                    } // 别的事务还没提交的页, 前像不能动
                 }
+                commitPages(tid, dirtied);
             }catch (IOException e){
                 e.printStackTrace();
             }
+            appendedPages.remove(tid); // 提交前已经落盘了
+            stolenPages.remove(tid);
         }else{
             try {
+                rollbackStolenPages(tid);
                 recoverAllPages(tid);
+                undoAppendedPages(tid);
             }catch (IOException e){
                 e.printStackTrace();
             }
         }
+    }
+
+    /**
+     * The second half of {@link #transactionComplete(TransactionId, boolean)}:
+     * release all locks associated to the transaction.
+     *
+     * @param tid the ID of the transaction requesting the unlock
+     */
+    public void releaseLocks(TransactionId tid) {
         try {
             txLockManager.releaseLock(tid);
         }catch (Exception e) {
@@ -190,13 +631,94 @@ public class BufferPool {
         }
     }
 
+    /*
+     * Put the before-images of pages stolen from tid back on disk, and drop
+     * the stolen pages from the pool: tid may have read them back, and the
+     * copy in the pool, along with its before-image, holds tid's changes.
+     * Normally Transaction.abort already rolled back through
+     * LogFile.logAbort, and the log no longer knows tid. Must run before
+     * recoverAllPages, so that it does not put such a before-image back.
+     */
+    private void rollbackStolenPages(TransactionId tid) throws IOException {
+        Set<PageId> stolen = stolenPages.remove(tid);
+        if (stolen == null) return;
+        try {
+            Database.getLogFile().rollback(tid);
+        } catch (NoSuchElementException e) {
+            // 已经回滚过了
+        }
+        for (PageId pid : stolen)
+            removePage(pid);
+    }
+
+    /**
+     * Remembers pages that tid is about to append to a file without going
+     * through the pool, as a bulk load does, so that aborting tid resets
+     * them to empty pages. tid must hold an X lock on the table (see
+     * {@link #lockTable}), which keeps other transactions from reading the
+     * pages until tid completes.
+     *
+     * @param tid  the transaction appending the pages
+     * @param pids the pages about to be appended
+     */
+    public void noteAppendedPages(TransactionId tid, List<PageId> pids) {
+        appendedPages.computeIfAbsent(tid, k -> Collections.synchronizedList(new ArrayList<>())).addAll(pids);
+    }
+
+    /* Reset the pages tid appended with noteAppendedPages to empty. */
+    private void undoAppendedPages(TransactionId tid) throws IOException {
+        List<PageId> pids = appendedPages.remove(tid);
+        if (pids == null) return;
+        for (PageId pid : pids) {
+            Database.getCatalog().getDatabaseFile(pid.getTableId())
+                    .writePage(new HeapPage((HeapPageId) pid, HeapPage.createEmptyPageData()));
+            removePage(pid);
+        }
+    }
+
+    /*
+     * Log the after-image of every page tid dirtied. With NO-FORCE the pages
+     * stay in the pool until eviction or a checkpoint writes them, and the
+     * COMMIT record forces the log. With FORCE they are written now, behind
+     * a single log force instead of one per page.
+     */
+    private synchronized void commitPages(TransactionId tid, List<Page> pages) throws IOException {
+        if (pages.isEmpty()) return;
+        LogFile log = Database.getLogFile();
+        for (Page page : pages) {
+            log.logWrite(tid, page.getBeforeImage(), page);
+            committedDirty.putIfAbsent(page.getId(), page.getLSN());
+            page.markDirty(false, null);
+        }
+        if (forceOnCommit) {
+            long lastLsn = -1;
+            for (Page page : pages)
+                lastLsn = Math.max(lastLsn, page.getLSN());
+            log.forceUpTo(lastLsn);
+            for (Page page : pages) {
+                committedDirty.remove(page.getId());
+                Database.getCatalog().getDatabaseFile(page.getId().getTableId()).writePage(page);
+                diskVersion.incrementAndGet();
+            }
+        }
+        for (Page page : pages)
+            page.setBeforeImage();
+    }
+
+    /**
+     * Puts back the before-image of every page tid dirtied. Only the pages
+     * tid holds locks on are looked at: a transaction dirties a page only
+     * under its write lock.
+     */
     public void recoverAllPages(TransactionId tid) throws IOException{
-        for (PageId pid: pageMap.keySet()) {
+        for (PageId pid: txLockManager.getLockedPages(tid)) {
             Page page = pageMap.get(pid);
-            if(!tid.equals(page.isDirty()))continue;
-            Page recovery = Database.getCatalog().getDatabaseFile(page.getId().getTableId()).readPage(page.getId());
+            if(page == null || !tid.equals(page.isDirty()))continue;
+            // NO-FORCE 下磁盘上可能还是更早的版本, 要用内存里最后一次提交时的前像
+            Page recovery = page.getBeforeImage();
+            diskVersion.incrementAndGet();
             pageMap.put(recovery.getId(), recovery);
-            // lruMap不做改动;
+            // replacementPolicy不做改动;
         }
     }
 
@@ -220,8 +742,7 @@ public class BufferPool {
         List<Page> pages = Database.getCatalog().getDatabaseFile(tableId).insertTuple(tid, t);
         for (Page page : pages) {
             page.markDirty(true,tid); // 标记为脏页
-            PageId pageId = page.getId();
-            pageMap.put(pageId,page); // 更新缓存池中的page
+            cachePage(page); // 更新缓存池中的page
         }
     }
 
@@ -246,8 +767,7 @@ public class BufferPool {
         List<Page> pages = Database.getCatalog().getDatabaseFile(tableId).deleteTuple(tid,t);
         for (Page page : pages) {
             page.markDirty(true,tid); // 标记为脏页
-            PageId pageId = page.getId();
-            pageMap.put(pageId,page); // 更新缓存池中的page
+            cachePage(page); // 更新缓存池中的page
         }
     }
 
@@ -259,6 +779,10 @@ public class BufferPool {
     public synchronized void flushAllPages() throws IOException {
         for (PageId id : pageMap.keySet()) {
             Page page = pageMap.get(id);
+            if (page.isDirty() == null && committedDirty.containsKey(id)) {
+                flushPage(id); // 已提交还没写回的页
+                continue;
+            }
             // 如果是脏页，写会磁盘
             if(page.isDirty() != null){
                 flushPage(page.getId());
@@ -282,8 +806,13 @@ public class BufferPool {
      * are removed from the cache so they can be reused safely
      */
     public synchronized void removePage(PageId pid) {
+       diskVersion.incrementAndGet();
+       committedDirty.remove(pid);
        pageMap.remove(pid);
-       lruMap.remove(pid);
+       replacementPolicy.remove(pid);
+       BufferRing owner = ringOwner.remove(pid);
+       if (owner != null) owner.release(pid);
+       dropPrefetched(pid);
     }
 
     /**
@@ -298,11 +827,16 @@ public class BufferPool {
             // append an update record to the log, with
             // a before-image and after-image.
             TransactionId dirtier = page.isDirty();
+            boolean committed = committedDirty.remove(pid) != null;
             if (dirtier != null){
                 Database.getLogFile().logWrite(dirtier, page.getBeforeImage(), page);
-                Database.getLogFile().force();
+                Database.getLogFile().forceUpTo(page.getLSN());
+            } else if (committed) {
+                // 提交时已经记过日志, 只要保证到这一页的pageLSN落盘(WAL)
+                Database.getLogFile().forceUpTo(page.getLSN());
             }
             Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(page);
+            diskVersion.incrementAndGet(); // 写完再加, 和这次写重叠的预读都会被丢弃
             page.markDirty(false,null);
         }
     }
@@ -311,44 +845,110 @@ public class BufferPool {
      * Write all pages of the specified transaction to disk.
      */
     public synchronized void flushPages(TransactionId tid) throws IOException {
-        for (PageId pageId: pageMap.keySet()) {
+        for (PageId pageId: txLockManager.getLockedPages(tid)) {
             Page page = pageMap.get(pageId);
-            if(!tid.equals(page.isDirty())) continue;
+            if(page == null || !tid.equals(page.isDirty())) continue;
             flushPage(pageId);
         }
     }
 
+    /**
+     * Writes a page that committed transactions left in the pool (NO-FORCE),
+     * unless it has been written since or a running transaction has dirtied
+     * it again. Fuzzy checkpoints call this once per page of their dirty page
+     * table, so other transactions only ever wait for one page write.
+     *
+     * @return true if the page was written
+     */
+    public synchronized boolean writeCommittedPage(PageId pid) throws IOException {
+        Page page = pageMap.get(pid);
+        if (page == null || page.isDirty() != null || !committedDirty.containsKey(pid))
+            return false;
+        flushPage(pid);
+        return true;
+    }
+
     /**
      * Discards a page from the buffer pool.
-     * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * Clean pages are evicted first, so nothing has to be written back.
+     * Next come pages of committed transactions that have not been written
+     * yet (NO-FORCE). If every page is dirty and STEAL is on, a dirty page of
+     * a running transaction is logged and written back instead.
      */
     private synchronized void evictPage() throws DbException {
-        PageId victim = null;
-        int min = Integer.MAX_VALUE;
-        // 找到最少访问的page
-        for (PageId id: pageMap.keySet()) {
-            Page page = pageMap.get(id);
-            if(page.isDirty() != null) continue;
-            if(victim == null){
-                victim = id;
-                min = lruMap.get(id);
-            }else{
-                int times = lruMap.get(id);
-                if (times < min){
-                    victim = id;
-                    min = times;
+        PageId victim = replacementPolicy.chooseVictim(pid -> {
+            Page page = pageMap.get(pid);
+            return page != null && page.isDirty() == null && !committedDirty.containsKey(pid);
+        });
+        if(victim == null) {
+            // 主缓存里没有干净页了, 就从缓冲环里拿一个(比如缓存池比环还小, 或者扫描没有归还环)
+            for (Map.Entry<PageId, BufferRing> e : ringOwner.entrySet()) {
+                Page page = pageMap.get(e.getKey());
+                if (page != null && page.isDirty() == null && !committedDirty.containsKey(e.getKey())) {
+                    e.getValue().release(e.getKey());
+                    ringOwner.remove(e.getKey());
+                    pageMap.remove(e.getKey());
+                    dropPrefetched(e.getKey());
+                    return;
                 }
             }
+            victim = replacementPolicy.chooseVictim(pid -> {
+                Page page = pageMap.get(pid);
+                return page != null && page.isDirty() == null && committedDirty.containsKey(pid);
+            });
+            if (victim != null) {
+                try {
+                    flushPage(victim);
+                } catch (IOException e) {
+                    throw new DbException("could not write back committed page " + victim + ": " + e.getMessage());
+                }
+                pageMap.remove(victim);
+                replacementPolicy.remove(victim);
+                dropPrefetched(victim);
+                return;
+            }
+            if (steal) {
+                victim = replacementPolicy.chooseVictim(pid -> canSteal(pageMap.get(pid)));
+                if (victim != null) {
+                    stealPage(victim);
+                    return;
+                }
+            }
+            throw new DbException("NO CLEAN PAGE TO EVICT");
         }
-        if(victim == null) throw new DbException("NO CLEAN PAGE TO EVICT");
+        // 记得要驱除
+        pageMap.remove(victim);
+        replacementPolicy.remove(victim);
+        dropPrefetched(victim);
+    }
+
+    /* A dirty page can be stolen only if its transaction can be rolled back from the log. */
+    private boolean canSteal(Page page) {
+        if (page == null || page.isDirty() == null) return false;
+        return Database.getLogFile().isActive(page.isDirty());
+    }
+
+    /*
+     * Write a dirty page of a running transaction back to disk and drop it.
+     * The UPDATE record with its before-image is forced first (write-ahead
+     * logging), so rollback and recovery can undo the write.
+     */
+    private synchronized void stealPage(PageId pid) throws DbException {
+        Page page = pageMap.get(pid);
+        TransactionId dirtier = page.isDirty();
         try {
-            flushPage(victim);
-            // 记得要驱除
-            lruMap.remove(victim);
-            pageMap.remove(victim);
-        }catch (IOException e){
-            throw new DbException("Evict error: failed to flush...");
+            Database.getLogFile().logWrite(dirtier, page.getBeforeImage(), page);
+            Database.getLogFile().forceUpTo(page.getLSN());
+            Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(page);
+        } catch (IOException e) {
+            throw new DbException("could not write back dirty page " + pid + ": " + e.getMessage());
         }
+        diskVersion.incrementAndGet();
+        committedDirty.remove(pid);
+        stolenPages.computeIfAbsent(dirtier, k -> ConcurrentHashMap.newKeySet()).add(pid);
+        pageMap.remove(pid);
+        replacementPolicy.remove(pid);
+        dropPrefetched(pid);
     }
 
 }
@@ -0,0 +1,88 @@
+package simpledb.storage;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * BufferRing is a small private set of BufferPool frames for a bulk
+ * operation, such as a sequential scan of a large table or the scans that
+ * build table statistics.
+ * <p>
+ * Pages read through a ring (see
+ * {@link BufferPool#getPage(simpledb.transaction.TransactionId, PageId, simpledb.common.Permissions, BufferRing)})
+ * are not handed to the pool's replacement policy. Once the ring is full, its
+ * oldest page makes room for the next one, so one scan can never push more
+ * than {@link #size()} pages of other sessions out of the pool. A ring page
+ * moves to the main pool if it gets dirtied or if it is requested without a
+ * ring.
+ * <p>
+ * Bulk loads do not use a ring: {@link HeapFile#bulkLoad} writes its pages
+ * straight to the file and never caches them, so it cannot push other pages
+ * out of the pool in the first place.
+ * <p>
+ * Bulk readers usually get their ring from {@link BufferPool#newBufferRing()}.
+ * A ring belongs to a single scan, which should hand it back with
+ * {@link BufferPool#releaseRing(BufferRing)} when done. All of its state is
+ * guarded by the BufferPool it is used with.
+ */
+public class BufferRing {
+
+    /** 32 pages = 128KB with the default page size */
+    public static final int DEFAULT_SIZE = 32;
+
+    private final PageId[] slots;
+    private int next = 0;
+
+    /**
+     * @param size the number of frames in the ring
+     */
+    public BufferRing(int size) {
+        if (size <= 0)
+            throw new IllegalArgumentException("ring size must be positive");
+        this.slots = new PageId[size];
+    }
+
+    /**
+     * @return the number of frames in the ring
+     */
+    public int size() {
+        return slots.length;
+    }
+
+    /**
+     * @return the page in the slot that the next page will reuse, or null
+     */
+    PageId nextVictim() {
+        return slots[next];
+    }
+
+    /**
+     * @return the pages currently in the ring
+     */
+    List<PageId> pages() {
+        List<PageId> pages = new ArrayList<>();
+        for (PageId pid : slots) {
+            if (pid != null)
+                pages.add(pid);
+        }
+        return pages;
+    }
+
+    /**
+     * Puts pid into the next slot and advances the ring.
+     */
+    void place(PageId pid) {
+        slots[next] = pid;
+        next = (next + 1) % slots.length;
+    }
+
+    /**
+     * Forgets pid, e.g. because it moved to the main pool.
+     */
+    void release(PageId pid) {
+        for (int i = 0; i < slots.length; i++) {
+            if (pid.equals(slots[i]))
+                slots[i] = null;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package simpledb.storage;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * CLOCK (second chance) replacement over a fixed array of frames.
+ * <p>
+ * Every resident page owns one frame and one reference bit. A hit only sets
+ * the reference bit, so it never takes the policy lock. To find a victim the
+ * clock hand sweeps the frames, clearing reference bits as it passes; the
+ * first evictable frame whose bit is already clear is chosen. Each bit is
+ * cleared at most once per admission or hit, so a victim is found in
+ * amortized constant time.
+ *
+ * @see BufferPool
+ */
+public class ClockReplacementPolicy implements ReplacementPolicy {
+
+    private final int capacity;
+    private final PageId[] frames;
+    private final boolean[] referenced;
+    private final Map<PageId, Integer> frameOf;
+
+    private final int[] freeFrames; // stack of unused frame numbers
+    private int numFree;
+    private int hand;
+
+    /**
+     * @param capacity the number of frames, i.e. the size of the BufferPool
+     */
+    public ClockReplacementPolicy(int capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("capacity must be positive");
+        this.capacity = capacity;
+        this.frames = new PageId[capacity];
+        this.referenced = new boolean[capacity];
+        this.frameOf = new ConcurrentHashMap<>();
+        this.freeFrames = new int[capacity];
+        for (int i = 0; i < capacity; i++)
+            freeFrames[i] = capacity - 1 - i;
+        this.numFree = capacity;
+        this.hand = 0;
+    }
+
+    public synchronized void recordAdmit(PageId pid) {
+        Integer frame = frameOf.get(pid);
+        if (frame != null) {
+            referenced[frame] = true;
+            return;
+        }
+        if (numFree == 0)
+            throw new IllegalStateException("no free frame for page " + pid);
+        int f = freeFrames[--numFree];
+        frames[f] = pid;
+        referenced[f] = true;
+        frameOf.put(pid, f);
+    }
+
+    public void recordAccess(PageId pid) {
+        // a racing eviction may clear or reuse the frame; losing one bit is harmless
+        Integer frame = frameOf.get(pid);
+        if (frame != null)
+            referenced[frame] = true;
+    }
+
+    public synchronized void remove(PageId pid) {
+        Integer frame = frameOf.remove(pid);
+        if (frame == null) return;
+        frames[frame] = null;
+        referenced[frame] = false;
+        freeFrames[numFree++] = frame;
+    }
+
+    public synchronized PageId chooseVictim(Predicate<PageId> evictable) {
+        // the first sweep clears every reference bit, so the second one is
+        // guaranteed to stop at any evictable frame
+        for (int i = 0; i < 2 * capacity; i++) {
+            int frame = hand;
+            hand = (hand + 1) % capacity;
+            PageId pid = frames[frame];
+            if (pid == null || !evictable.test(pid))
+                continue;
+            if (referenced[frame]) {
+                referenced[frame] = false;
+                continue;
+            }
+            return pid;
+        }
+        return null;
+    }
+}
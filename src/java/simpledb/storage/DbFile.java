@@ -92,4 +92,14 @@ public interface DbFile {
      * @return TupleDesc of this DbFile.
      */
     TupleDesc getTupleDesc();
+
+    /**
+     * Closes the files this DbFile keeps open. The Catalog calls this when
+     * the table is dropped or replaced; a DbFile that is still used
+     * afterwards opens its files again.
+     *
+     * @throws IOException if closing a file fails
+     */
+    default void close() throws IOException {
+    }
 }
@@ -0,0 +1,153 @@
+package simpledb.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * DbFileChannel keeps one long-lived FileChannel open on the file backing a
+ * DbFile, so that page reads and writes do not pay for an open() and close()
+ * each time.
+ * <p>
+ * All I/O is positional ({@link FileChannel#read(ByteBuffer, long)} and
+ * {@link FileChannel#write(ByteBuffer, long)}), which never touches the
+ * channel's file pointer. Any number of threads can therefore read and write
+ * different pages at the same time without a seek-then-read critical section.
+ * <p>
+ * The channel is opened lazily. If it gets closed underneath us (a thread
+ * blocked in I/O was interrupted), the next caller reopens it. Only a write
+ * creates a missing file; reading a file that does not exist throws
+ * NoSuchFileException.
+ *
+ * @Threadsafe
+ */
+public class DbFileChannel {
+
+    private final File f;
+    private volatile FileChannel channel;
+
+    public DbFileChannel(File f) {
+        this.f = f;
+    }
+
+    /**
+     * @return the open channel, opening it first if needed.
+     */
+    public FileChannel channel() throws IOException {
+        return channel(false);
+    }
+
+    private FileChannel channel(boolean create) throws IOException {
+        FileChannel ch = channel;
+        if (ch == null || !ch.isOpen()) {
+            ch = reopen(ch, create);
+        }
+        return ch;
+    }
+
+    private synchronized FileChannel reopen(FileChannel stale, boolean create) throws IOException {
+        if (channel != stale && channel != null && channel.isOpen())
+            return channel; // someone else already reopened it
+        try {
+            if (create)
+                channel = FileChannel.open(f.toPath(), StandardOpenOption.READ,
+                        StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+            else
+                channel = FileChannel.open(f.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        } catch (AccessDeniedException e) {
+            channel = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+        }
+        return channel;
+    }
+
+    /**
+     * Read up to buf.length bytes starting at the given file position. Bytes
+     * past the end of the file are left untouched.
+     *
+     * @return the number of bytes read, or -1 if position is at or past the
+     *         end of the file
+     */
+    public int read(byte[] buf, long position) throws IOException {
+        return read(ByteBuffer.wrap(buf), position);
+    }
+
+    /**
+     * Read into the remaining space of dst starting at the given file position.
+     *
+     * @return the number of bytes read, or -1 if position is at or past the
+     *         end of the file
+     */
+    public int read(ByteBuffer dst, long position) throws IOException {
+        int start = dst.position();
+        int total = 0;
+        while (dst.hasRemaining()) {
+            int n = retrying(false, ch -> ch.read(dst, position + (dst.position() - start)));
+            if (n < 0) break;
+            total += n;
+        }
+        return total == 0 && dst.hasRemaining() ? -1 : total;
+    }
+
+    /**
+     * Write all of data at the given file position, growing the file if needed.
+     */
+    public void write(byte[] data, long position) throws IOException {
+        ByteBuffer src = ByteBuffer.wrap(data);
+        while (src.hasRemaining()) {
+            retrying(true, ch -> ch.write(src, position + src.position()));
+        }
+    }
+
+    /**
+     * @return the current size of the file in bytes
+     */
+    public long size() throws IOException {
+        return retrying(false, FileChannel::size);
+    }
+
+    /**
+     * Force written data (but not necessarily metadata) to the storage device.
+     */
+    public void force() throws IOException {
+        retrying(false, ch -> {
+            ch.force(false);
+            return 0;
+        });
+    }
+
+    /**
+     * Close the channel. A later call reopens it.
+     */
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    private interface ChannelOp<T> {
+        T apply(FileChannel ch) throws IOException;
+    }
+
+    /*
+     * Run op, reopening the channel once if another thread's interrupt closed
+     * it. create says whether op may create the file.
+     */
+    private <T> T retrying(boolean create, ChannelOp<T> op) throws IOException {
+        FileChannel ch = channel(create);
+        try {
+            return op.apply(ch);
+        } catch (ClosedByInterruptException e) {
+            // our own interrupt: leave a fresh channel for everyone else
+            reopen(ch, create);
+            throw e;
+        } catch (ClosedChannelException e) {
+            return op.apply(reopen(ch, create));
+        }
+    }
+}
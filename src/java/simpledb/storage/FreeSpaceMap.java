@@ -0,0 +1,192 @@
+package simpledb.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.NoSuchFileException;
+import java.util.BitSet;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * FreeSpaceMap remembers which pages of a HeapFile have at least one free
+ * slot, so that an insert can find room in O(log n) instead of scanning the
+ * file.
+ * <p>
+ * The map is only a hint: an inserter still checks the page it was given
+ * under its page lock, and reports it with {@link #update} if it turns out to
+ * be full.
+ * <p>
+ * The map is kept in a sidecar file next to the table ({@code <table>.fsm}).
+ * It holds a magic number and the page count of the table, followed by one
+ * bit per page. A bit is written whenever the page it describes is written,
+ * so the sidecar follows the on-disk state of the table. If the sidecar is
+ * missing or its page count does not match the table, the map is rebuilt by
+ * reading the slot bitmap of every page.
+ *
+ * @Threadsafe
+ */
+public class FreeSpaceMap {
+
+    private static final int MAGIC = 0x46534d31; // "FSM1"
+    private static final int HEADER_SIZE = 8;    // magic, page count
+
+    private final HeapFile hf;
+    private final DbFileChannel sidecar;
+
+    /** pages that had a free slot the last time we looked */
+    private final ConcurrentSkipListSet<Integer> withSpace = new ConcurrentSkipListSet<>();
+    /** the bits as stored in the sidecar, so unchanged bits are not rewritten; guarded by this */
+    private final BitSet onDisk = new BitSet();
+    /** the page count as stored in the sidecar; guarded by this */
+    private int pageCount = -1;
+    private volatile boolean loaded = false;
+
+    /** where each thread looks first; spreads concurrent inserters over the file */
+    private final ThreadLocal<Integer> startHint = new ThreadLocal<>();
+
+    public FreeSpaceMap(HeapFile hf) {
+        this.hf = hf;
+        this.sidecar = new DbFileChannel(new File(hf.getFile().getPath() + ".fsm"));
+    }
+
+    /**
+     * Returns a page that probably has a free slot, or -1 if no page is known
+     * to have one. Different threads start looking at different places in
+     * the file, and each thread keeps going back to the page it got last.
+     */
+    public int findPage() throws IOException {
+        ensureLoaded();
+        Integer start = startHint.get();
+        if (start == null) {
+            // Fibonacci hashing of the thread id over the current file size
+            start = (int) ((Thread.currentThread().getId() * 2654435761L & 0xffffffffL) % Math.max(1, hf.numPages()));
+            startHint.set(start);
+        }
+        Integer pgNo = withSpace.ceiling(start);
+        if (pgNo == null) {
+            try {
+                pgNo = withSpace.first();
+            } catch (NoSuchElementException e) {
+                return -1;
+            }
+        }
+        startHint.set(pgNo);
+        return pgNo;
+    }
+
+    /**
+     * Records whether a page has free slots after the caller changed it in
+     * memory, or found it full.
+     */
+    public void update(int pgNo, boolean hasSpace) {
+        if (hasSpace) {
+            withSpace.add(pgNo);
+        } else {
+            withSpace.remove(pgNo);
+        }
+    }
+
+    /**
+     * Records the state of a page that was just written to disk, and writes
+     * its bit to the sidecar if it changed. Also called when the file grows.
+     */
+    public synchronized void pageWritten(int pgNo, boolean hasSpace) throws IOException {
+        if (!loaded)
+            return; // the sidecar is checked against the table when first used
+        update(pgNo, hasSpace);
+        if (pgNo >= pageCount) {
+            pageCount = pgNo + 1;
+            writeHeader();
+        }
+        if (onDisk.get(pgNo) != hasSpace) {
+            onDisk.set(pgNo, hasSpace);
+            writeBitByte(pgNo);
+        }
+    }
+
+    /**
+     * Records the state of a page that was just read from disk. Does not
+     * touch the sidecar.
+     */
+    public void pageRead(int pgNo, boolean hasSpace) {
+        if (loaded)
+            update(pgNo, hasSpace);
+    }
+
+    private void ensureLoaded() throws IOException {
+        if (loaded) return;
+        synchronized (this) {
+            if (loaded) return;
+            int numPages = hf.numPages();
+            if (!readSidecar(numPages))
+                rebuild(numPages);
+            loaded = true;
+        }
+    }
+
+    /* Load the sidecar if it matches the table. guarded by this */
+    private boolean readSidecar(int numPages) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        try {
+            if (sidecar.read(header, 0) < HEADER_SIZE)
+                return false;
+        } catch (NoSuchFileException e) {
+            return false; // 还没有边车文件, 重建时写出
+        }
+        header.flip();
+        if (header.getInt() != MAGIC || header.getInt() != numPages)
+            return false;
+        byte[] bits = new byte[(numPages + 7) / 8];
+        if (bits.length > 0 && sidecar.read(bits, HEADER_SIZE) < bits.length)
+            return false;
+        BitSet set = BitSet.valueOf(bits);
+        onDisk.clear();
+        onDisk.or(set);
+        for (int i = set.nextSetBit(0); i >= 0; i = set.nextSetBit(i + 1))
+            withSpace.add(i);
+        pageCount = numPages;
+        return true;
+    }
+
+    /* Scan the slot bitmap of every page and rewrite the sidecar. guarded by this */
+    private void rebuild(int numPages) throws IOException {
+        onDisk.clear();
+        for (int i = 0; i < numPages; i++) {
+            HeapPage page = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), i));
+            if (page.getNumUnusedSlots() > 0) {
+                onDisk.set(i);
+                withSpace.add(i);
+            }
+        }
+        pageCount = numPages;
+        byte[] bits = new byte[(numPages + 7) / 8];
+        byte[] set = onDisk.toByteArray();
+        System.arraycopy(set, 0, bits, 0, set.length);
+        sidecar.write(bits, HEADER_SIZE);
+        writeHeader();
+    }
+
+    private void writeHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(pageCount);
+        sidecar.write(header.array(), 0);
+    }
+
+    private void writeBitByte(int pgNo) throws IOException {
+        int index = pgNo / 8;
+        byte b = 0;
+        for (int i = 0; i < 8; i++) {
+            if (onDisk.get(index * 8 + i))
+                b |= 1 << i;
+        }
+        sidecar.write(new byte[]{b}, HEADER_SIZE + index);
+    }
+
+    /**
+     * Close the sidecar file; it is reopened if the map is used again.
+     */
+    public void close() throws IOException {
+        sidecar.close();
+    }
+}
@@ -3,11 +3,15 @@ package simpledb.storage;
 import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Permissions;
+import simpledb.execution.OpIterator;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 import simpledb.transaction.TxLockManager;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
 
 /**
@@ -22,12 +26,42 @@ import java.util.*;
  */
 public class HeapFile implements DbFile {
 
+    /** bounds of the read-ahead window of a sequential scan, in pages */
+    private static final int MIN_READ_AHEAD = 4;
+    private static final int MAX_READ_AHEAD = 64;
+
+    /** pages a bulk load writes and logs at once, 256KB with the default page size */
+    private static final int BULK_LOAD_EXTENT = 64;
+
     public File f;
     private TupleDesc td;
 
     // 因为一表一个HeapFile, 所以放心使用一个tableId表示一个Heapfile
     private int tableId;
 
+    // 一直打开着的文件句柄, 所有读写都是带位置的, 多线程可以同时用
+    private final DbFileChannel channel;
+
+    // 内存映射模式: 读页时直接从映射区切片构造HeapPage, 适合读多写少的表
+    private volatile boolean memoryMapped = false;
+    private volatile MappedByteBuffer mapped; // 文件增长后在readPage里惰性重新映射
+
+    // 记录哪些页还有空槽, 插入时不用从头扫描整个文件
+    private final FreeSpaceMap freeSpace;
+
+    // readPages 一次读进来的一整段, 同一线程里的 readPage 先从这里取
+    private final ThreadLocal<ReadBatch> readBatch = new ThreadLocal<>();
+
+    private static class ReadBatch {
+        final long start;
+        final byte[] bytes;
+
+        ReadBatch(long start, byte[] bytes) {
+            this.start = start;
+            this.bytes = bytes;
+        }
+    }
+
 
     /**
      * Constructs a heap file backed by the specified file.
@@ -39,6 +73,37 @@ public class HeapFile implements DbFile {
         this.f = f;
         this.td = td;
         this.tableId = f.getAbsoluteFile().hashCode();
+        this.channel = new DbFileChannel(f);
+        this.freeSpace = new FreeSpaceMap(this);
+    }
+
+    /**
+     * Turns the memory-mapped read path on or off. When on, readPage maps the
+     * file read-only and builds each HeapPage from a slice of the mapping,
+     * letting the OS page cache hold the data. Writes still go through the
+     * file channel, and the mapping is redone whenever a read falls past its
+     * end because the file has grown.
+     * <p>
+     * A HeapPage still copies the slice into its own array, since a write
+     * through the channel changes the mapped bytes under any page decoding
+     * from them. What the mode saves is the read system call per page and
+     * the intermediate buffer of the channel path, which copies each page
+     * twice (kernel to buffer, buffer to page) where the mapping copies it
+     * once.
+     *
+     * @param memoryMapped true to read pages through a memory mapping
+     */
+    public void setMemoryMapped(boolean memoryMapped) {
+        this.memoryMapped = memoryMapped;
+        if (!memoryMapped)
+            mapped = null;
+    }
+
+    /**
+     * @return true if pages are read through a memory mapping of the file
+     */
+    public boolean isMemoryMapped() {
+        return memoryMapped;
     }
 
     /**
@@ -72,38 +137,107 @@ public class HeapFile implements DbFile {
         return td;
     }
 
+    // see DbFile.java for javadocs
+    public void close() throws IOException {
+        mapped = null; // 映射在被回收时才解除, 之后要用再重新映射
+        freeSpace.close();
+        channel.close();
+    }
+
     // see DbFile.java for javadocs
     public Page readPage(PageId pid) {
         if(this.tableId != pid.getTableId()) return null;
         // 先计算偏差
-        int offset = BufferPool.getPageSize() * pid.getPageNumber();
-        RandomAccessFile randomAccessFile = null;
-        HeapPage heapPage = null;
+        long offset = (long) BufferPool.getPageSize() * pid.getPageNumber();
         try {
-            randomAccessFile = new RandomAccessFile(f,"r");
-            randomAccessFile.seek(offset);
+            if (memoryMapped) {
+                ByteBuffer map = mappingFor(offset + BufferPool.getPageSize());
+                if (map != null) {
+                    ByteBuffer page = map.duplicate();
+                    page.position((int) offset);
+                    page.limit((int) offset + BufferPool.getPageSize());
+                    return noteFreeSpace(new HeapPage((HeapPageId) pid, page.slice())); // 在构造函数里拷一次
+                }
+                // 页在文件末尾之外, 退回到普通读
+            }
+            // 读到文件末尾之外的部分保持全0, 也就是空页
             byte[] buffer = new byte[BufferPool.getPageSize()];
-            randomAccessFile.read(buffer,0,BufferPool.getPageSize());
-            randomAccessFile.close();
-            HeapPageId heapPageId = (HeapPageId) pid;
-            heapPage = new HeapPage(heapPageId, buffer);
-        } catch (Exception e) {
+            ReadBatch batch = readBatch.get();
+            if (batch != null && offset >= batch.start && offset + buffer.length <= batch.start + batch.bytes.length)
+                System.arraycopy(batch.bytes, (int) (offset - batch.start), buffer, 0, buffer.length);
+            else
+                channel.read(buffer, offset);
+            return noteFreeSpace(new HeapPage((HeapPageId) pid, buffer));
+        } catch (IOException e) {
             throw new RuntimeException(e);
         }
-        return heapPage;
     }
 
     // 将指定的page写到磁盘上
     public void writePage(Page page) throws IOException {
-        HeapPage heapPage = (HeapPage) page;
-        int offset = heapPage.getId().getPageNumber() * BufferPool.getPageSize();
+        long offset = (long) page.getId().getPageNumber() * BufferPool.getPageSize();
+        channel.write(page.getPageData(), offset);
+        freeSpace.pageWritten(page.getId().getPageNumber(), ((HeapPage) page).getNumUnusedSlots() > 0);
+    }
+
+    // 刚从磁盘读上来的页, 顺便更新空闲空间表(比如事务回滚后页被重新读入)
+    private HeapPage noteFreeSpace(HeapPage page) {
+        freeSpace.pageRead(page.getId().getPageNumber(), page.getNumUnusedSlots() > 0);
+        return page;
+    }
+
+    /**
+     * Reads the given pages of this file with a single positional read that
+     * spans all of them, then builds each page through {@link #readPage}.
+     * Pages past the end of the file are left out. Used by the BufferPool for
+     * read-ahead.
+     *
+     * @param pids pages of this file, in increasing page number order
+     * @return the pages read, in the same order
+     */
+    public List<Page> readPages(List<PageId> pids) throws IOException {
+        List<Page> pages = new ArrayList<>();
+        if (pids.isEmpty()) return pages;
+        int pageSize = BufferPool.getPageSize();
+        int first = pids.get(0).getPageNumber();
+        int last = Math.min(pids.get(pids.size() - 1).getPageNumber(), numPages() - 1);
+        if (last < first) return pages;
+
+        ReadBatch batch = new ReadBatch((long) first * pageSize, new byte[(last - first + 1) * pageSize]);
+        channel.read(batch.bytes, batch.start);
+        readBatch.set(batch);
         try {
-            RandomAccessFile rw = new RandomAccessFile(f, "rw");
-            rw.seek(offset); // 记得seek
-            rw.write(heapPage.getPageData());
-            rw.close();
-        }catch (IOException e){
-            throw e;
+            for (PageId pid : pids) {
+                if (pid.getPageNumber() > last) break;
+                pages.add(readPage(pid));
+            }
+        } finally {
+            readBatch.remove();
+        }
+        return pages;
+    }
+
+    /**
+     * Returns a mapping that covers at least the first end bytes of the file,
+     * remapping if the file has grown since the last mapping. Returns null if
+     * the file is shorter than end.
+     */
+    private ByteBuffer mappingFor(long end) throws IOException {
+        MappedByteBuffer map = mapped;
+        if (map != null && map.capacity() >= end)
+            return map;
+        synchronized (this) {
+            map = mapped;
+            if (map == null || map.capacity() < end) {
+                long size = channel.size();
+                if (size < end)
+                    return null;
+                if (size > Integer.MAX_VALUE)
+                    throw new IOException("file too large to map: " + f);
+                map = channel.channel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+                mapped = map;
+            }
+            return map;
         }
     }
 
@@ -120,24 +254,20 @@ public class HeapFile implements DbFile {
             throws DbException, IOException, TransactionAbortedException {
         boolean insertSuccess = false; // 需要有一个flag来标志我们是否插入成功
         List<Page> res = new ArrayList<>();
-        for (int i =0; i < numPages(); i ++) {
-            HeapPageId pageId = new HeapPageId(tableId, i);
+        // 空闲空间表只是提示: 拿到写锁后还要再检查一次, 满了就告诉它, 再要下一个
+        int pgNo;
+        while ((pgNo = freeSpace.findPage()) >= 0) {
+            HeapPageId pageId = new HeapPageId(tableId, pgNo);
             HeapPage page = (HeapPage)Database.getBufferPool().getPage(tid, pageId, Permissions.READ_WRITE);
-            int numUnusedSlots = page.getNumUnusedSlots();
-            if(numUnusedSlots != 0){
+            if(page.getNumUnusedSlots() != 0){
                 page.insertTuple(t);
                 // page.markDirty(true,tid); 这边暂时不要markDirty，交给buffer-pool
+                freeSpace.update(pgNo, page.getNumUnusedSlots() != 0);
                 insertSuccess = true;
                 res.add(page); // 只返回这个修改的page
                 break;
-            } else {
-                // 现在这里可以释放锁了, 因为这个页面我们没有使用
-                try {
-
-                }catch (Exception e){
-                    e.printStackTrace();
-                }
             }
+            freeSpace.update(pgNo, false);
         }
         // !!!如果没有页可以容纳，那么我们就添加一个新页
         if(!insertSuccess){
@@ -158,6 +288,74 @@ public class HeapFile implements DbFile {
         return res;
     }
 
+    /**
+     * Appends every remaining tuple of child to fresh pages at the end of this
+     * file, bypassing the BufferPool. Pages are filled in memory and written
+     * in extents of up to 64 pages with one sequential write each. Each
+     * extent gets a single EXTENT log record instead of one UPDATE record per
+     * page, and the pages are forced to disk before this returns, so the
+     * transaction can commit without logging their contents.
+     * <p>
+     * tid first takes an X lock on the table, so no other transaction reads
+     * or writes it until tid completes. The new pages are reset to empty if
+     * tid aborts. Existing pages with free slots are not used.
+     * <p>
+     * None of the pages is cached, so unlike a scan a load needs no
+     * {@link BufferRing} to keep from flushing the pool; readers fetch the
+     * new pages from disk once tid completes.
+     *
+     * @param tid   the transaction loading the tuples
+     * @param child an open iterator over the tuples to load
+     * @return the number of tuples loaded
+     * @see LogFile#logExtent
+     */
+    public int bulkLoad(TransactionId tid, OpIterator child)
+            throws DbException, IOException, TransactionAbortedException {
+        // 先在文件锁外面拿表锁, 等锁的时候不挡住别的事务往文件里插入
+        Database.getBufferPool().lockTable(tid, tableId, Permissions.READ_WRITE);
+        int count = 0;
+        // 整个导入期间占住追加新页的锁, insertTuple 这时不能在文件末尾加页
+        synchronized (this) {
+            int pgNo = numPages();
+            List<HeapPage> extent = new ArrayList<>();
+            HeapPage page = null;
+            while (child.hasNext()) {
+                if (page == null || page.getNumUnusedSlots() == 0) {
+                    if (extent.size() == BULK_LOAD_EXTENT) {
+                        writeExtent(tid, extent);
+                        extent.clear();
+                    }
+                    page = new HeapPage(new HeapPageId(tableId, pgNo++), HeapPage.createEmptyPageData());
+                    extent.add(page);
+                }
+                page.insertTuple(child.next());
+                count++;
+            }
+            if (!extent.isEmpty())
+                writeExtent(tid, extent);
+            channel.force(); // 提交前数据必须已经落盘, 日志里没有页内容可以redo
+        }
+        return count;
+    }
+
+    // 先写EXTENT日志并刷日志, 再一次性把这一段页顺序写到文件末尾
+    private void writeExtent(TransactionId tid, List<HeapPage> extent)
+            throws IOException {
+        int pageSize = BufferPool.getPageSize();
+        int first = extent.get(0).getId().getPageNumber();
+        List<PageId> pids = new ArrayList<>();
+        byte[] bytes = new byte[extent.size() * pageSize];
+        for (int i = 0; i < extent.size(); i++) {
+            pids.add(extent.get(i).getId());
+            System.arraycopy(extent.get(i).getPageData(), 0, bytes, i * pageSize, pageSize);
+        }
+        Database.getBufferPool().noteAppendedPages(tid, pids);
+        Database.getLogFile().logExtent(tid, tableId, first, extent.size());
+        channel.write(bytes, (long) first * pageSize);
+        for (HeapPage p : extent)
+            freeSpace.pageWritten(p.getId().getPageNumber(), p.getNumUnusedSlots() > 0);
+    }
+
     // see DbFile.java for javadocs
     public List<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
             TransactionAbortedException {
@@ -166,13 +364,27 @@ public class HeapFile implements DbFile {
         HeapPage page = (HeapPage)Database.getBufferPool().getPage(tid, pageId, Permissions.READ_WRITE);
         page.deleteTuple(t);
         // page.markDirty(true,tid); 这边暂时不要markDirty，交给buffer-pool
+        freeSpace.update(pageId.getPageNumber(), true);
         res.add(page);
         return res;
     }
 
     // see DbFile.java for javadocs
     public DbFileIterator iterator(TransactionId tid) {
-        return new HeapFileIterator(tid);
+        return new HeapFileIterator(tid, null);
+    }
+
+    /**
+     * Returns an iterator that reads the pages through the given BufferRing,
+     * so that scanning this file does not push other pages out of the
+     * BufferPool.
+     *
+     * @param tid  the transaction the scan runs in
+     * @param ring the ring to read through, or null for a normal scan
+     * @see BufferPool#getPage(TransactionId, PageId, Permissions, BufferRing)
+     */
+    public DbFileIterator iterator(TransactionId tid, BufferRing ring) {
+        return new HeapFileIterator(tid, ring);
     }
 
     // 自建类，用于迭代每一个page，通过page进而迭代每一个tuple；
@@ -185,20 +397,67 @@ public class HeapFile implements DbFile {
 
         private TransactionId tid;
 
-        public HeapFileIterator(TransactionId tid){
+        private final BufferRing ring; // 大表扫描用的私有缓冲环, 可以为null
+
+        // 预读窗口: 顺序读时每发一批翻倍, 发现有预读的页被浪费就减半
+        private int readAheadWindow = MIN_READ_AHEAD;
+        private int readAheadEnd = 0; // 已经发出预读的页号上界(不含)
+        private long lastWasted = 0;
+
+        public HeapFileIterator(TransactionId tid, BufferRing ring){
             this.tid = tid;
+            this.ring = ring;
+        }
+
+        private HeapPage getPage(int pgNo) throws TransactionAbortedException, DbException {
+            return (HeapPage) Database.getBufferPool().getPage(tid, new HeapPageId(tableId, pgNo), Permissions.READ_ONLY, ring);
+        }
+
+        /**
+         * Called when the scan moves on to page pgNo. Once the consumer is
+         * halfway through the pages already requested, asks the BufferPool to
+         * read the next window in the background.
+         */
+        private void readAhead(int pgNo) {
+            BufferPool pool = Database.getBufferPool();
+            int maxWindow = Math.min(MAX_READ_AHEAD, pool.getNumPages() / 4);
+            if (ring != null)
+                maxWindow = Math.min(maxWindow, ring.size() / 2); // 预读的页不能把环里还没扫到的页挤掉
+            if (memoryMapped || maxWindow < MIN_READ_AHEAD) return; // mmap时交给操作系统预读
+            if (pgNo + readAheadWindow / 2 < readAheadEnd) return;
+            int n = numPages();
+            int start = Math.max(pgNo + 1, readAheadEnd);
+            if (start >= n) return;
+
+            long wasted = pool.getWastedPrefetches();
+            if (wasted > lastWasted)
+                readAheadWindow = Math.max(MIN_READ_AHEAD, readAheadWindow / 2); // 预读太快, 页还没用就被挤掉了
+            else if (readAheadEnd > 0)
+                readAheadWindow = Math.min(maxWindow, readAheadWindow * 2); // 消费者跟上了上一批
+            lastWasted = wasted;
+
+            int count = Math.min(readAheadWindow, n - start);
+            pool.prefetch(tableId, start, count, ring);
+            readAheadEnd = start + count;
+        }
+
+        private void resetReadAhead() {
+            readAheadWindow = MIN_READ_AHEAD;
+            readAheadEnd = 0;
+            lastWasted = Database.getBufferPool().getWastedPrefetches();
         }
 
         @Override
         public void open() throws DbException, TransactionAbortedException {
             pageCursor = 0;
-            HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, new HeapPageId(tableId, 0), Permissions.READ_ONLY);
-            inPageCursor = page.iterator();
+            resetReadAhead();
+            inPageCursor = getPage(0).iterator();
         }
 
         private HeapPage prefetchPage() throws TransactionAbortedException, DbException {
             if(pageCursor == numPages() - 1) return null;
-            return (HeapPage) Database.getBufferPool().getPage(tid, new HeapPageId(tableId,pageCursor + 1), Permissions.READ_ONLY);
+            readAhead(pageCursor + 1);
+            return getPage(pageCursor + 1);
         }
 
         @Override
@@ -231,12 +490,15 @@ public class HeapFile implements DbFile {
         @Override
         public void rewind() throws DbException, TransactionAbortedException {
             pageCursor = 0;
-            inPageCursor = ((HeapPage) Database.getBufferPool().getPage(tid, new HeapPageId(tableId, 0), Permissions.READ_ONLY)).iterator();
+            resetReadAhead();
+            inPageCursor = getPage(0).iterator();
         }
 
         @Override
         public void close() {
             inPageCursor = null;
+            if (ring != null)
+                Database.getBufferPool().releaseRing(ring);
         }
     }
 
@@ -6,6 +6,7 @@ import simpledb.common.DbException;
 import simpledb.transaction.TransactionId;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 /**
@@ -15,19 +16,22 @@ import java.util.*;
  * @see HeapFile
  * @see BufferPool
  */
-public class HeapPage implements Page {
+public class HeapPage implements SlottedPage {
 
     final HeapPageId pid;
     final TupleDesc td;
+    final byte[] data; // 构造时拷贝的页字节, 页自己的, 不会被别人改
     final byte[] header; // bitmap
-    final Tuple[] tuples; // 真正存储tuple的地方
+    final Tuple[] tuples; // 已经解码(或新插入)的tuple, null表示还没解码; guarded by this
+    final BitSet pending; // 内容和data不一致的槽(插入或删除过), 写出时才重新编码; guarded by this
     final int numSlots; // 槽的容量
 
 
     private TransactionId transactionId;
 
-    byte[] oldData;
-    private final Byte oldDataLock = (byte) 0;
+    byte[] oldData; // null: 前映像就是当前内容, 第一次修改时才拷贝; guarded by this
+    private volatile long lsn = -1; // pageLSN, 只在内存里
+    private final SlotWriteLog slotWrites = new SlotWriteLog(); // 上次记日志以来的槽写入; guarded by this
 
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
@@ -47,25 +51,33 @@ public class HeapPage implements Page {
      * @see BufferPool#getPageSize()
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Create a HeapPage from the bytes between the position and limit of a
+     * buffer, e.g. a slice of a memory-mapped file. The bytes are copied, so
+     * the caller may reuse or overwrite them afterwards. Only the header is
+     * parsed here; each tuple is decoded from the copy the first time
+     * {@link #getTuple} or {@link #iterator} reaches it.
+     *
+     * @see #HeapPage(HeapPageId, byte[])
+     */
+    public HeapPage(HeapPageId id, ByteBuffer data) throws IOException {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        // 不足一页的数据按后面补0处理
+        this.data = new byte[BufferPool.getPageSize()];
+        ByteBuffer src = data.duplicate();
+        src.get(this.data, 0, Math.min(src.remaining(), this.data.length));
 
         // allocate and read the header slots of this page
         header = new byte[getHeaderSize()];
-        for (int i = 0; i < header.length; i++)
-            header[i] = dis.readByte();
+        System.arraycopy(this.data, 0, header, 0, header.length);
 
         tuples = new Tuple[numSlots];
-        try {
-            // allocate and read the actual records of this page
-            for (int i = 0; i < tuples.length; i++)
-                tuples[i] = readNextTuple(dis, i);
-        } catch (NoSuchElementException e) {
-            e.printStackTrace();
-        }
-        dis.close();
+        pending = new BitSet(numSlots);
         setBeforeImage();
     }
 
@@ -96,8 +108,8 @@ public class HeapPage implements Page {
     public HeapPage getBeforeImage() {
         try {
             byte[] oldDataRef = null;
-            synchronized (oldDataLock) {
-                oldDataRef = oldData;
+            synchronized (this) {
+                oldDataRef = oldData != null ? oldData : getPageData();
             }
             return new HeapPage(pid, oldDataRef);
         } catch (IOException e) {
@@ -109,8 +121,20 @@ public class HeapPage implements Page {
     }
 
     public void setBeforeImage() {
-        synchronized (oldDataLock) {
-            oldData = getPageData().clone();
+        synchronized (this) {
+            oldData = null;
+        }
+    }
+
+    /**
+     * Saves the current content as the before-image, unless one is already
+     * saved. Called first by every mutator (copy-on-first-write), so pages
+     * that are only read never hold a second copy.
+     */
+    private void captureBeforeImage() {
+        synchronized (this) {
+            if (oldData == null)
+                oldData = getPageData();
         }
     }
 
@@ -122,21 +146,29 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Suck up tuples from the source file.
+     * Returns the tuple in the given slot, decoding it from the page bytes on
+     * first use.
+     *
+     * @param slotId the slot number
+     * @return the tuple, or null if the slot is empty
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i = 0; i < td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
+    public synchronized Tuple getTuple(int slotId) {
+        if (!isSlotUsed(slotId))
             return null;
+        Tuple t = tuples[slotId];
+        if (t == null) {
+            t = decodeTuple(slotId);
+            tuples[slotId] = t;
         }
+        return t;
+    }
+
+    /**
+     * Suck up one tuple from the page bytes.
+     */
+    private Tuple decodeTuple(int slotId) throws NoSuchElementException {
+        DataInputStream dis = new DataInputStream(
+                new ByteArrayInputStream(data, slotOffset(slotId), td.getSize()));
 
         // read fields in the tuple
         Tuple t = new Tuple(td);
@@ -155,6 +187,11 @@ public class HeapPage implements Page {
         return t;
     }
 
+    /* byte offset of a slot within the page */
+    private int slotOffset(int slotId) {
+        return header.length + slotId * td.getSize();
+    }
+
     /**
      * Generates a byte array representing the contents of this page.
      * Used to serialize this page to disk.
@@ -166,65 +203,35 @@ public class HeapPage implements Page {
      * @return A byte array correspond to the bytes of this page.
      * @see #HeapPage
      */
-    public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        // create the header of the page
-        for (byte b : header) {
-            try {
-                dos.writeByte(b);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
-
-        // create the tuples
-        for (int i = 0; i < tuples.length; i++) {
+    public synchronized byte[] getPageData() {
+        // 只有改动过的槽需要重新编码, 其余字节原样拷贝
+        byte[] out = data.clone();
+        System.arraycopy(header, 0, out, 0, header.length);
 
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(td.getSize());
+        DataOutputStream dos = new DataOutputStream(baos);
+        for (int i = pending.nextSetBit(0); i >= 0; i = pending.nextSetBit(i + 1)) {
+            int off = slotOffset(i);
             // empty slot
             if (!isSlotUsed(i)) {
-                for (int j = 0; j < td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
+                Arrays.fill(out, off, off + td.getSize(), (byte) 0);
                 continue;
             }
 
             // non-empty slot
+            baos.reset();
             for (int j = 0; j < td.numFields(); j++) {
                 Field f = tuples[i].getField(j);
                 try {
                     f.serialize(dos);
-
                 } catch (IOException e) {
+                    // this really shouldn't happen
                     e.printStackTrace();
                 }
             }
+            System.arraycopy(baos.toByteArray(), 0, out, off, td.getSize());
         }
-
-        // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        return baos.toByteArray();
+        return out;
     }
 
     /**
@@ -244,12 +251,16 @@ public class HeapPage implements Page {
      * @throws DbException if this tuple is not on this page, or tuple slot is
      *                     already empty.
      */
-    public void deleteTuple(Tuple t) throws DbException {
+    public synchronized void deleteTuple(Tuple t) throws DbException {
+        captureBeforeImage();
         int index = t.getRecordId().getTupleNumber(); // 拿到页内位置
         if(t.getRecordId().getPageId() != pid || !isSlotUsed(index)) // 判断是否有这个tuple
             throw new DbException("Delete failed ...");
+        if (slotWrites.tracking())
+            slotWrites.add(new SlotWrite(index, SlotWrite.encode(getTuple(index)), null));
         markSlotUsed(index,false); // 标记为free
         tuples[index] = null;
+        pending.set(index);
     }
 
     /**
@@ -260,7 +271,8 @@ public class HeapPage implements Page {
      * @throws DbException if the page is full (no empty slots) or tupledesc
      *                     is mismatch.
      */
-    public void insertTuple(Tuple t) throws DbException {
+    public synchronized void insertTuple(Tuple t) throws DbException {
+        captureBeforeImage();
         // 检查是不是这个page的
         if(getNumUnusedSlots() == 0 || !td.equals(t.getTupleDesc()))
             throw new DbException("ERROR: HeapPage Insert failed ...");
@@ -272,8 +284,28 @@ public class HeapPage implements Page {
             }
         }
         tuples[index] = t;
+        pending.set(index);
         markSlotUsed(index,true); // 标记为已使用
         t.setRecordId(new RecordId(pid,index)); // !!!不要忘记设置RecordId
+        if (slotWrites.tracking())
+            slotWrites.add(new SlotWrite(index, null, SlotWrite.encode(t)));
+    }
+
+    public synchronized List<SlotWrite> drainSlotWrites() {
+        return slotWrites.drain();
+    }
+
+    public synchronized void writeSlot(int slot, byte[] data) {
+        if (data == null) {
+            markSlotUsed(slot, false);
+            tuples[slot] = null;
+        } else {
+            Tuple t = SlotWrite.decode(td, data);
+            t.setRecordId(new RecordId(pid, slot));
+            tuples[slot] = t;
+            markSlotUsed(slot, true);
+        }
+        pending.set(slot);
     }
 
     /**
@@ -281,9 +313,10 @@ public class HeapPage implements Page {
      * that did the dirtying
      */
     public void markDirty(boolean dirty, TransactionId tid) {
-        if(dirty)
+        if(dirty) {
+            captureBeforeImage();
             this.transactionId = tid;
-        else
+        } else
             this.transactionId = null;
     }
 
@@ -294,6 +327,14 @@ public class HeapPage implements Page {
         return transactionId;
     }
 
+    public long getLSN() {
+        return lsn;
+    }
+
+    public void setLSN(long lsn) {
+        this.lsn = lsn;
+    }
+
     /**
      * Returns the number of unused (i.e., empty) slots on this page.
      */
@@ -327,12 +368,36 @@ public class HeapPage implements Page {
      *         (note that this iterator shouldn't return tuples in empty slots!)
      */
     public Iterator<Tuple> iterator() {
-        ArrayList<Tuple> list = new ArrayList<>();
-        for (int i = 0; i < tuples.length; i++) {
-            if(isSlotUsed(i))
-                list.add(tuples[i]);
+        // 对已用槽做快照, 迭代过程中插入的tuple不会被看到, 每个tuple在next()时才解码
+        final BitSet used = new BitSet(numSlots);
+        synchronized (this) {
+            for (int i = 0; i < numSlots; i++) {
+                if (isSlotUsed(i))
+                    used.set(i);
+            }
         }
-        return list.iterator();
+        return new Iterator<Tuple>() {
+            private int slot = used.nextSetBit(0);
+            private Tuple next = null;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null && slot >= 0) {
+                    next = getTuple(slot); // null: deleted since the snapshot
+                    slot = used.nextSetBit(slot + 1);
+                }
+                return next != null;
+            }
+
+            @Override
+            public Tuple next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                Tuple t = next;
+                next = null;
+                return t;
+            }
+        };
     }
 
     /* Returns the Nth bit of X. */
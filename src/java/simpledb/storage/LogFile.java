@@ -5,13 +5,16 @@ import simpledb.common.Debug;
 import simpledb.execution.SeqScan;
 import simpledb.transaction.TransactionId;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.lang.reflect.Constructor;
-import java.lang.reflect.InvocationTargetException;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 /*
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -47,51 +50,97 @@ must not be declared synchronized and must begin with a block like:
  *
  * <ul>
  *
- * <li> The first long integer of the file represents the offset of the
- * last written checkpoint, or -1 if there are no checkpoints
- * 文件的第一个长整数表示最后一个写入的检查点的偏移量，如果没有检查点，则为 -1
+ * <li> The log is a run of fixed-size segment files (log.00000000,
+ * log.00000001, ...) holding log records back to back, and a small control
+ * file (log) that holds the segment size, the LSN of the CHECKPOINT record
+ * of the last completed checkpoint (or -1 if there are no checkpoints) and
+ * the first LSN still in the log (see LogSegments). A record's LSN is its
+ * position in the log, so records may span two segments.
+ * 日志由一串固定大小的段文件组成，记录首尾相接；另有一个小的控制文件，
+ * 保存段大小、最后一个完成的检查点的 CHECKPOINT 记录的 LSN（没有检查点则为 -1）
+ * 以及日志里第一个还在的 LSN。记录的 LSN 就是它在日志里的位置。
  *
- * <li> All additional data in the log consists of log records.  Log
+ * <li> All data in the segments consists of log records.  Log
  * records are variable length.
- * 日志中的所有附加数据都由日志记录组成。日志记录的长度可变。
+ * 段中的所有数据都由日志记录组成。日志记录的长度可变。
  *
  * <li> Each log record begins with an integer type and a long integer
  * transaction id.
  * 每个日志记录都以整数类型和长整数事务 ID 开头。
  *
- * <li> Each log record ends with a long integer file offset representing
- * the position in the log file where the record began.
- * 每个日志记录都以一个长整数文件偏移量结尾，表示日志文件中记录开始的位置。
+ * <li> Each log record ends with a long integer offset representing
+ * the position in the log where the record began, its LSN. Every other
+ * offset in the log is an LSN as well.
+ * 每个日志记录都以一个长整数偏移量结尾，表示日志中记录开始的位置，也就是它的 LSN。
+ * 日志里别的偏移也都是 LSN。
  *
- * <li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
- * CHECKPOINT
- *  有五种记录类型：ABORT, COMMIT, UPDATE, BEGIN, and CHECKPOINT
+ * <li> Records are appended to an in-memory log buffer and reach the
+ * segments in large writes, when the buffer fills up, when the log is
+ * forced, or before the log is read back. logTruncate drops whole segments
+ * from the front of the log and never moves a record, so LSNs stay valid.
+ * 记录先追加到内存里的日志缓冲, 缓冲满了、需要刷盘或者要回读日志时再大块写到段里。
+ * 截断只删掉前面整个的段, 记录不会挪动, LSN 一直有效。
+ *
+ * <li> There are eight record types: ABORT, COMMIT, UPDATE, BEGIN,
+ * CHECKPOINT, EXTENT, TUPLE and END_CHECKPOINT
+ *  有八种记录类型：ABORT, COMMIT, UPDATE, BEGIN, CHECKPOINT, EXTENT, TUPLE and END_CHECKPOINT
  *
  * <li> ABORT, COMMIT, and BEGIN records contain no additional data
  * ABORT、COMMIT和 BEGIN 记录不包含其他数据
  *
- * <li>UPDATE RECORDS consist of two entries, a before image and an
- * after image.  These images are serialized Page objects, and can be
- * accessed with the LogFile.readPageData() and LogFile.writePageData()
- * methods.  See LogFile.print() for an example.
- * UPDATE记录由两个条目组成，一个是前映像，一个是后映像。
- * 这些图像是序列化的 Page 对象，可以使用 LogFile.readPageData（） 和 LogFile.writePageData（） 方法
- * 进行访问。有关示例，请参阅 LogFile.print（）。
+ * <li>UPDATE RECORDS consist of a page delta: the page id, followed by the
+ * byte ranges in which the after image differs from the before image, with
+ * the old and the new bytes of each range (see PageDelta). Redo copies the
+ * new bytes over the page on disk, undo copies the old bytes back, so a
+ * one-tuple change logs a few dozen bytes instead of two whole pages.
+ * See LogFile.print() for an example.
+ * UPDATE记录是一个页差量：页id，加上前后映像不同的字节区间，每个区间带旧字节和新字节。
+ * redo把新字节盖到磁盘上的页上，undo把旧字节写回去。有关示例，请参阅 LogFile.print（）。
  *
  * <li> CHECKPOINT records consist of active transactions at the time
  * the checkpoint was taken and their first log record on disk.  The format
  * of the record is an integer count of the number of transactions, as well
  * as a long integer transaction id and a long integer first record offset
- * for each active transaction.
+ * for each active transaction. It is followed by the dirty page table: an
+ * integer count of pages, and for each page whose logged changes were not
+ * on disk yet, its page id (as in UPDATE records) and the long integer
+ * offset of the first record that changed it since it was last written
+ * (its recLSN). Recovery starts redo at the smallest of these offsets, or at
+ * the checkpoint if the table is empty.
  * CHECKPOINT 记录由创建检查点时的活动事务及其在磁盘上的第一个日志记录组成。
  * 记录的格式是事务数的整数计数，以及每个活动事务的长整数事务 ID 和长整数首条记录偏移量。
+ * 后面跟着脏页表：页数，以及每个日志已经记了但还没写回磁盘的页的页id和recLSN
+ * （上次写回之后第一条改它的记录的偏移）。恢复从最小的recLSN（没有脏页就从检查点）开始redo。
+ *
+ * <li> END_CHECKPOINT records are written once the pages in the dirty page
+ * table of a CHECKPOINT record have been written back (see logCheckpoint).
+ * They hold the long integer offset of that CHECKPOINT record, which may
+ * have been truncated away since. A CHECKPOINT record without one is ignored.
+ * 脏页表里的页写回之后写 END_CHECKPOINT 记录，内容是对应的 CHECKPOINT 记录的偏移（可能已经被截掉了）。
+ * 没有 END_CHECKPOINT 的检查点不算数。
+ *
+ * <li> EXTENT records describe a run of fresh pages that a bulk load
+ * appended to a HeapFile (see HeapFile#bulkLoad), as an integer table id,
+ * first page number and page count. The page contents are not logged: the
+ * loader forces them to the table file before the transaction commits, so
+ * redo has nothing to do, and undo resets the pages to empty.
+ * EXTENT 记录批量导入追加的一段新页：表id、起始页号、页数。页内容不进日志，
+ * 提交前已经强制写到表文件里了，所以redo什么都不用做，undo把这些页清空。
+ *
+ * <li> TUPLE records are written instead of UPDATE records when tuple
+ * logging is on (see setTupleLogging) and the page only changed through
+ * tuple inserts, deletes and moves. They hold the page id and a list of
+ * slot writes, each a slot number with the serialized tuple that was in
+ * the slot before and the one that is in it after (see TupleChanges).
+ * 打开tuple日志后，如果页只是插入/删除/移动了tuple，就写TUPLE记录代替UPDATE记录：
+ * 页id加上一串槽写入，每个是槽号和写入前后的tuple。
  *
  * </ul>
  */
 public class LogFile {
 
     final File logFile;
-    private RandomAccessFile raf;
+    private final LogSegments log;
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
@@ -99,17 +148,70 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int EXTENT_RECORD = 6;
+    static final int TUPLE_RECORD = 7;
+    static final int END_CHECKPOINT_RECORD = 8;
     static final long NO_CHECKPOINT_ID = -1;
 
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
 
-    long currentOffset = -1;//protected by this
+    long currentOffset = -1;//protected by this, end of the log including the buffer
     //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
 
     final Map<Long, Long> tidToFirstLogRecord = new HashMap<>();
 
+    // 日志缓冲: 还没写到文件里的记录, 从文件偏移 bufferStart 开始
+    private static final int LOG_BUFFER_SIZE = 64 * 1024;
+    private final LogBuffer logBuffer = new LogBuffer(LOG_BUFFER_SIZE);
+    private final DataOutputStream out = new DataOutputStream(logBuffer);
+    private long bufferStart = 0; // protected by this
+
+    // 新日志的段大小
+    private static final int DEFAULT_SEGMENT_SIZE = 1 << 20;
+    private static int segmentSize = DEFAULT_SEGMENT_SIZE;
+
+    // 组提交: 提交的线程只追加记录然后等待, 由一个刷盘线程一次 fsync 把大家一起刷下去
+    // 等待的"票号"就是LSN: 等到 durableLsn 越过自己的记录
+    long appendedRecords = 0; // protected by this
+    private final Object flushMonitor = new Object();
+    private long durableLsn = 0;       // protected by flushMonitor, everything before it is on disk
+    private long requestedLsn = 0;     // protected by flushMonitor
+    private long flushedRecords = 0;   // protected by flushMonitor
+    private Thread flusher = null;     // protected by flushMonitor, null when idle
+    private IOException flushError = null; // protected by flushMonitor, 最近一次失败的批次的错误
+    private long flushFailures = 0;        // protected by flushMonitor
+    private volatile long groupCommitDelayMicros = 0;
+    private volatile boolean tupleLogging = false;
+    private volatile long checkpointWriteDelayMicros = 0;
+    private volatile int redoThreads = Math.min(4, Runtime.getRuntime().availableProcessors());
+    private static final int REDO_BATCH = 64;  // 每次交给redo线程的记录数
+    private static final int REDO_QUEUE = 16;  // 每个redo线程最多排队的批数
+
+    // 检查点: 同一时间只做一个; 后台线程定期做
+    private final Object checkpointLock = new Object();
+    private final Object checkpointerMonitor = new Object();
+    private Thread checkpointer = null; // protected by checkpointerMonitor
+    private static final long FLUSHER_IDLE_MILLIS = 1000;
+
+    /* A ByteArrayOutputStream that can write its contents without copying them. */
+    private static class LogBuffer extends ByteArrayOutputStream {
+        LogBuffer(int size) {
+            super(size);
+        }
+
+        void writeTo(LogSegments log) throws IOException {
+            log.append(buf, 0, count);
+        }
+    }
+
+    // 每批的统计, protected by flushMonitor
+    private long flushBatches = 0;
+    private long flushedBatchRecords = 0;
+    private long maxBatchRecords = 0;
+    private long groupCommitWaits = 0;
+
     /**
      * Constructor.
      * Initialize and back the log file with the specified file.
@@ -120,11 +222,11 @@ public class LogFile {
      * do it, while if someone starts adding log file entries, then first
      * throw out the initial log file contents.
      *
-     * @param f The log file's name
+     * @param f The name of the log's control file; its segments go next to it
      */
     public LogFile(File f) throws IOException {
         this.logFile = f;
-        raf = new RandomAccessFile(f, "rw");
+        log = new LogSegments(f, segmentSize);
         recoveryUndecided = true;
 
         // install shutdown hook to force cleanup on close
@@ -143,18 +245,67 @@ public class LogFile {
     // the log.
     void preAppend() throws IOException {
         totalRecords++;
+        appendedRecords++;
         if (recoveryUndecided) {
             // FIXME 现在可以决定要不要恢复了: 不需要恢复 ???
             recoveryUndecided = false;
             // 截断
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            log.reset(segmentSize);
+            logBuffer.reset();
+            bufferStart = 0;
+            currentOffset = bufferStart;
         }
     }
 
+    /* File offset where the next record goes. protected by this */
+    private long position() {
+        return bufferStart + logBuffer.size();
+    }
+
+    /* Called after each record: moves currentOffset past it, writes the buffer out once it is full. */
+    private void postAppend() throws IOException {
+        currentOffset = position();
+        if (logBuffer.size() >= LOG_BUFFER_SIZE)
+            flushBuffer();
+    }
+
+    /* Write the buffered records to the end of the file in one write. protected by this */
+    private void flushBuffer() throws IOException {
+        if (logBuffer.size() == 0) return;
+        logBuffer.writeTo(log);
+        bufferStart += logBuffer.size();
+        logBuffer.reset();
+    }
+
+    /**
+     * @return the LSN the next log record will get
+     */
+    public synchronized long getNextLSN() {
+        return position();
+    }
+
+    /**
+     * Sets the size of the segment files of logs started from now on; an
+     * existing log keeps the segment size it was started with.
+     * THIS FUNCTION SHOULD ONLY BE USED FOR TESTING!!
+     */
+    public static void setSegmentSize(int bytes) {
+        LogFile.segmentSize = bytes;
+    }
+
+    // THIS FUNCTION SHOULD ONLY BE USED FOR TESTING!!
+    public static void resetSegmentSize() {
+        LogFile.segmentSize = DEFAULT_SEGMENT_SIZE;
+    }
+
+    /**
+     * @return the number of segment files the log is spread over
+     */
+    public synchronized int getNumSegments() throws IOException {
+        flushBuffer();
+        return log.numSegments();
+    }
+
     public synchronized int getTotalRecords() {
         return totalRecords;
     }
@@ -180,10 +331,10 @@ public class LogFile {
                 // live transactions (needs tidToFirstLogRecord)
                 rollback(tid); // 回滚
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer(); // 更新currentOffset
+                out.writeInt(ABORT_RECORD);
+                out.writeLong(tid.getId());
+                out.writeLong(currentOffset);
+                postAppend(); // 更新currentOffset
                 force();
                 tidToFirstLogRecord.remove(tid.getId());
             }
@@ -196,22 +347,32 @@ public class LogFile {
      *
      * @param tid The committing transaction.
      */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
-
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    public void logCommit(TransactionId tid) throws IOException {
+        long ticket;
+        synchronized (this) {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            ticket = currentOffset;
+            out.writeInt(COMMIT_RECORD);
+            out.writeLong(tid.getId());
+            out.writeLong(currentOffset);
+            postAppend();
+            tidToFirstLogRecord.remove(tid.getId());
+        }
+        // 在锁外等刷盘线程, 这样别的事务可以接着追加, 一起被刷下去
+        forceUpTo(ticket);
     }
 
     /**
      * Write an UPDATE record to disk for the specified tid and page
      * (with provided         before and after images.)
+     * With tuple logging on, a page that only changed through its slots
+     * gets a TUPLE record with those slot writes instead.
+     * The record's LSN becomes the pageLSN of after; the record is only
+     * buffered, so callers must {@link #forceUpTo} that LSN before writing
+     * the page.
      *
      * @param tid    The transaction performing the write
      * @param before The before image of the page
@@ -221,93 +382,105 @@ public class LogFile {
     public synchronized void logWrite(TransactionId tid, Page before,
                                       Page after)
             throws IOException {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
         preAppend();
+        Debug.log("WRITE, offset = " + currentOffset);
         /* update record conists of
 
            record type
            transaction id
-           before page data (see writePageData)
-           after page data
+           page delta (see PageDelta)
            start offset
-        */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
 
-        writePageData(raf, before);
-        writePageData(raf, after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+           or, for a TUPLE record, the slot writes (see TupleChanges)
+           instead of the page delta
+        */
+        // 槽写入每次都要取走, 不然下次记日志时会混进这次已经记过的
+        List<SlotWrite> writes = after instanceof SlottedPage ? ((SlottedPage) after).drainSlotWrites() : null;
+        PageChange change = tupleLogging && writes != null
+                ? new TupleChanges(after.getId(), writes)
+                : PageDelta.diff(before, after);
+        after.setLSN(currentOffset);
+        out.writeInt(change instanceof TupleChanges ? TUPLE_RECORD : UPDATE_RECORD);
+        out.writeLong(tid.getId());
+        change.write(out);
+        out.writeLong(currentOffset);
+        postAppend();
 
         Debug.log("WRITE OFFSET = " + currentOffset);
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException {
-        PageId pid = p.getId();
-        int[] pageInfo = pid.serialize();
-
-        //page data is:
-        // page class name
-        // id class name
-        // id class bytes
-        // id class data
-        // page class bytes
-        // page class data
+    /**
+     * Turns tuple-level logging on or off. When on, pages that only changed
+     * through tuple inserts, deletes and moves are logged as the slot writes
+     * that made the change, rather than as a byte delta of the page.
+     */
+    public void setTupleLogging(boolean on) {
+        tupleLogging = on;
+    }
 
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
+    public boolean isTupleLogging() {
+        return tupleLogging;
+    }
 
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
+    /**
+     * @return true if tid has a BEGIN record in the log and has not finished
+     *         yet, so that its writes can be rolled back from the log
+     */
+    public synchronized boolean isActive(TransactionId tid) {
+        return tidToFirstLogRecord.containsKey(tid.getId());
+    }
 
-        raf.writeInt(pageInfo.length);
-        for (int j : pageInfo) {
-            raf.writeInt(j);
+    /**
+     * Write an EXTENT record for pages that tid appended to a heap file
+     * without going through the BufferPool, and force the log, so the
+     * pages can be undone if tid does not commit. The caller must write
+     * the pages only after this returns, and force them before committing.
+     *
+     * @param tid       The transaction that appended the pages
+     * @param tableId   The table the pages belong to
+     * @param firstPage The page number of the first appended page
+     * @param numPages  The number of pages appended
+     */
+    public void logExtent(TransactionId tid, int tableId, int firstPage, int numPages)
+            throws IOException {
+        synchronized (this) {
+            preAppend();
+            out.writeInt(EXTENT_RECORD);
+            out.writeLong(tid.getId());
+            out.writeInt(tableId);
+            out.writeInt(firstPage);
+            out.writeInt(numPages);
+            out.writeLong(currentOffset);
+            postAppend();
         }
-        byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
-        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
+        force();
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
-
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
-
-        try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object[] idArgs = new Object[numIdArgs];
-            for (int i = 0; i < numIdArgs; i++) {
-                idArgs[i] = raf.readInt();
-            }
-            pid = (PageId) idConsts[0].newInstance(idArgs);
-
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
-
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
-
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
+    // 把一段批量导入的页重置成空页, 同时扔掉缓存池里的版本
+    private void undoExtent(int tableId, int firstPage, int numPages) throws IOException {
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+        for (int i = firstPage; i < firstPage + numPages; i++) {
+            HeapPageId pid = new HeapPageId(tableId, i);
+            file.writePage(new HeapPage(pid, HeapPage.createEmptyPageData()));
+            Database.getBufferPool().removePage(pid);
+        }
+    }
 
-            newPage = (Page) pageConsts[0].newInstance(pageArgs);
+    /* Read the current version of a page from its table file. */
+    private Page diskPage(PageId pid) {
+        return Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+    }
 
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException | InvocationTargetException | IllegalAccessException | InstantiationException e) {
-            e.printStackTrace();
-            throw new IOException();
-        }
-        return newPage;
+    /* Write a replayed page back and drop the cached copy. */
+    private void installPage(Page page) throws IOException {
+        PageId pid = page.getId();
+        Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(page);
+        Database.getBufferPool().removePage(pid);
+    }
 
+    /* Read the body of an UPDATE or TUPLE record. */
+    private PageChange readChange(int type, DataInput in) throws IOException {
+        return type == TUPLE_RECORD ? TupleChanges.read(in) : PageDelta.read(in);
     }
 
     /**
@@ -323,220 +496,285 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
+        out.writeInt(BEGIN_RECORD);
+        out.writeLong(tid.getId());
+        out.writeLong(currentOffset);
         tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        postAppend();
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
 
     /**
-     * Checkpoint the log and write a checkpoint record.
+     * Take a fuzzy checkpoint. A CHECKPOINT record saves the active
+     * transactions and the dirty page table without writing any pages; the
+     * pages in that table are then written back one at a time, while other
+     * transactions keep running, and an END_CHECKPOINT record marks the
+     * checkpoint complete. Only then does the checkpoint pointer at the
+     * start of the log move to the new CHECKPOINT record and the log get
+     * truncated, so a crash halfway through recovers from the previous
+     * checkpoint.
      */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
+        synchronized (checkpointLock) {
+            long beginLsn;
+            Map<PageId, Long> dirtyPages;
+            // 只有拿快照、写CHECKPOINT记录时持有缓冲池锁: 提交在缓冲池锁里写日志并登记脏页,
+            // 所以CHECKPOINT之前记过日志的页不会漏在脏页表外面
+            synchronized (Database.getBufferPool()) {
+                synchronized (this) {
+                    preAppend();
+                    long startCpOffset = position();
+                    beginLsn = startCpOffset;
+                    out.writeInt(CHECKPOINT_RECORD);
+                    out.writeLong(-1); //no tid , but leave space for convenience
+
+                    //write list of outstanding transactions
+                    out.writeInt(tidToFirstLogRecord.size());
+                    for (Map.Entry<Long, Long> e : tidToFirstLogRecord.entrySet()) {
+                        Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + e.getKey());
+                        out.writeLong(e.getKey());
+                        out.writeLong(e.getValue());
+                    }
+                    // 脏页表
+                    dirtyPages = Database.getBufferPool().getDirtyPageTable();
+                    out.writeInt(dirtyPages.size());
+                    for (Map.Entry<PageId, Long> e : dirtyPages.entrySet()) {
+                        PageChange.writePageId(out, e.getKey());
+                        out.writeLong(e.getValue());
+                    }
+                    out.writeLong(startCpOffset);
+                    postAppend();
+                }
+            }
+
+            // 一页一页写回, 每页单独拿缓冲池锁, 不拿日志锁(写页要刷日志)
+            for (PageId pid : dirtyPages.keySet()) {
+                Database.getBufferPool().writeCommittedPage(pid);
+                long delay = checkpointWriteDelayMicros;
+                if (delay > 0) {
+                    try {
+                        TimeUnit.MICROSECONDS.sleep(delay);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        checkpointWriteDelayMicros = 0; // 剩下的不等了
+                    }
+                }
+            }
+
             synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
                 preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
+                out.writeInt(END_CHECKPOINT_RECORD);
+                out.writeLong(-1);
+                out.writeLong(beginLsn);
+                out.writeLong(currentOffset);
+                postAppend();
                 force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+                //once the checkpoint is complete, make sure the CP location
+                // in the control file is updated
+                log.setCheckpoint(beginLsn);
             }
-        }
 
-        logTruncate();
+            logTruncate();
+        }
     }
 
     /**
-     * Truncate any unneeded portion of the log to reduce its space
-     * consumption
+     * Sets how long checkpoints pause between two page writes, so that
+     * writing back a large dirty page table does not saturate the disk.
+     *
+     * @param micros the pause in microseconds; 0 (the default) for none
      */
-    public synchronized void logTruncate() throws IOException {
-        preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();  // 读取最后一个检查点
-
-        long minLogRecord = cpLoc;
-
-        // 如果有检查点的话
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
-
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
-            }
+    public void setCheckpointWriteDelay(long micros) {
+        checkpointWriteDelayMicros = micros;
+    }
 
-            int numOutstanding = raf.readInt();
+    /**
+     * Starts a background thread that takes a checkpoint every
+     * intervalMillis milliseconds, replacing any running one.
+     */
+    public void startCheckpointer(long intervalMillis) {
+        stopCheckpointer();
+        synchronized (checkpointerMonitor) {
+            checkpointer = new Thread(() -> runCheckpointer(intervalMillis), "simpledb-checkpointer");
+            checkpointer.setDaemon(true);
+            checkpointer.start();
+        }
+    }
 
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
-                }
+    /**
+     * Stops the background checkpoint thread, waiting for a checkpoint it
+     * is taking to complete.
+     */
+    public void stopCheckpointer() {
+        Thread t;
+        synchronized (checkpointerMonitor) {
+            t = checkpointer;
+            checkpointer = null;
+            checkpointerMonitor.notifyAll();
+        }
+        if (t == null || t == Thread.currentThread()) return;
+        // 不能 interrupt: 被中断的线程刷盘会把日志文件的 channel 关掉
+        boolean interrupted = false;
+        while (t.isAlive()) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
             }
         }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
 
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
-
-        //have to rewrite log records since offsets are different after truncation
+    private void runCheckpointer(long intervalMillis) {
         while (true) {
+            synchronized (checkpointerMonitor) {
+                long deadline = System.currentTimeMillis() + intervalMillis;
+                long left;
+                while (checkpointer == Thread.currentThread()
+                        && (left = deadline - System.currentTimeMillis()) > 0) {
+                    try {
+                        checkpointerMonitor.wait(left);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (checkpointer != Thread.currentThread()) return;
+            }
             try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
+                logCheckpoint();
+            } catch (IOException e) {
+                // 下一轮再试
+                e.printStackTrace();
+            }
+        }
+    }
 
-                switch (type) {
-                    case UPDATE_RECORD:
-                        Page before = readPageData(raf);
-                        Page after = readPageData(raf);
+    /*
+     * Read the body of a CHECKPOINT record (after its type and tid, up to its
+     * start offset), into the active transaction table and the dirty page
+     * table if they are not null.
+     */
+    private void readCheckpoint(DataInput in, Map<Long, Long> active,
+                                Map<PageId, Long> dirtyPages) throws IOException {
+        int numXactions = in.readInt();
+        while (numXactions-- > 0) {
+            long tid = in.readLong(), firstRecord = in.readLong();
+            if (active != null) active.put(tid, firstRecord);
+        }
+        int numDirty = in.readInt();
+        while (numDirty-- > 0) {
+            PageId pid = PageChange.readPageId(in);
+            long recLsn = in.readLong();
+            if (dirtyPages != null) dirtyPages.put(pid, recLsn);
+        }
+    }
 
-                        writePageData(logNew, before);
-                        writePageData(logNew, after);
-                        break;
-                    case CHECKPOINT_RECORD:
-                        int numXactions = raf.readInt();
-                        logNew.writeInt(numXactions);
-                        while (numXactions-- > 0) {
-                            long xid = raf.readLong();
-                            long xoffset = raf.readLong();
-                            logNew.writeLong(xid);
-                            logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                        }
-                        break;
-                    case BEGIN_RECORD:
-                        tidToFirstLogRecord.put(record_tid, newStart);
-                        break;
-                }
+    /**
+     * Truncate any unneeded portion of the log to reduce its space
+     * consumption. Whole segments before the last checkpoint, the first
+     * record of every transaction active at that checkpoint and the recLSN
+     * of every page that is still dirty are deleted; nothing is copied.
+     * Pages the checkpoint wrote back no longer hold truncation back, so
+     * recovery starts redo no earlier than the first LSN still in the log.
+     */
+    public synchronized void logTruncate() throws IOException {
+        preAppend();
+        flushBuffer();
+        long cpLoc = log.getCheckpoint();  // 读取最后一个检查点
 
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
+        // 如果有检查点的话
+        if (cpLoc == NO_CHECKPOINT_ID)
+            return;
+        long minLogRecord = cpLoc;
+        log.seek(cpLoc);
+        int cpType = log.readInt();
+        @SuppressWarnings("unused")
+        long cpTid = log.readLong();
 
-            } catch (EOFException e) {
-                break;
-            }
+        if (cpType != CHECKPOINT_RECORD) {
+            throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
         }
 
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
-
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
-
-        currentOffset = raf.getFilePointer();
-        //print();
+        // 活跃事务的第一条记录之后的都还要用
+        Map<Long, Long> active = new HashMap<>();
+        readCheckpoint(log, active, null);
+        for (long firstLogRecord : active.values())
+            minLogRecord = Math.min(minLogRecord, firstLogRecord);
+        // 脏页表用现在的: 检查点写回了的页不用再redo, 还脏着的页从recLSN开始都要留着
+        for (long recLsn : Database.getBufferPool().getDirtyPageTable().values())
+            minLogRecord = Math.min(minLogRecord, recLsn);
+
+        // we can drop every segment before minLogRecord
+        log.truncate(minLogRecord);
+        log.seek(currentOffset);
     }
 
     public void rollback(long tid) throws NoSuchElementException, IOException{
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
                 preAppend();
+                flushBuffer();
                 // 先找到 BEGIN 和 ABORT
                 Long startOffset = tidToFirstLogRecord.get(tid);
                 if(startOffset == null) throw new NoSuchElementException("事务"+tid+"不需要回滚...");
-                raf.seek(startOffset); // TODO: 2023/2/27 记得等下要把指针调回去
-                int type = raf.readInt();
+                log.seek(startOffset); // TODO: 2023/2/27 记得等下要把指针调回去
+                int type = log.readInt();
                 if(type != BEGIN_RECORD) throw new IOException("begin指针没有指向begin日志");
                 // 两次读取就直接跳过tid和offset了，这里没有检查tid是否匹配
-                raf.readLong();
-                raf.readLong();
+                log.readLong();
+                log.readLong();
 
-                //现在开始遍历，目标是找到每一个page的第一版
-                HashSet<PageId> pageIds = new HashSet<>();
+                //现在开始遍历，收集这个事务的所有改动, 最后倒着撤销
+                List<PageChange> changes = new ArrayList<>();
+                List<int[]> extents = new ArrayList<>();
                 long xactionId;
                 while (true){
                     try {
-                        type = raf.readInt();
-                        xactionId = raf.readLong(); // 事务id
+                        type = log.readInt();
+                        xactionId = log.readLong(); // 事务id
                     }catch (EOFException e){
                         break;
                     }
-                    if (type == UPDATE_RECORD) {
-                        Page before = readPageData(raf), after = readPageData(raf);
-                        raf.readLong(); // 处理记录后面一个offset
-                        if(xactionId != tid) continue;
-                        PageId pid = before.getId();
-                        int tableId = before.getId().getTableId();
-                        if(!pageIds.contains(pid)) {
-                            pageIds.add(pid);
-                            // FIXME: 2023/2/27 这里是用writePage还是只更换buffer-pool里的page? 毕竟变化还没有落盘
-                            Database.getCatalog().getDatabaseFile(tableId).writePage(before);
-                            // You will need to make sure that you discard any page from the buffer pool
-                            // whose before-image you write back to the table file.
-                            Database.getBufferPool().removePage(pid);
-                        }
+                    if (type == UPDATE_RECORD || type == TUPLE_RECORD) {
+                        PageChange change = readChange(type, log);
+                        log.readLong(); // 处理记录后面一个offset
+                        if(xactionId == tid) changes.add(change);
                     } else if (type == CHECKPOINT_RECORD) {
                         try {
-                            // raf.writeInt(keys.size());
-                            int size = raf.readInt();
-                            //while (els.hasNext()) {
-//                            Long key = els.next();
-//                            raf.writeLong(key);
-//                            raf.writeLong(tidToFirstLogRecord.get(key));
-//                        }
-                            while (size != 0){
-                                raf.readLong();
-                                raf.readLong();
-                                size--;
-                            }
-//                        raf.writeLong(currentOffset);
-                            raf.readLong();
+                            readCheckpoint(log, null, null);
+                            log.readLong();
                         }catch (EOFException e){
                             break;
                         }
+                    } else if (type == EXTENT_RECORD) {
+                        int tableId = log.readInt(), firstPage = log.readInt(), numPages = log.readInt();
+                        log.readLong();
+                        if (xactionId == tid)
+                            extents.add(new int[]{tableId, firstPage, numPages});
+                    } else if (type == END_CHECKPOINT_RECORD) {
+                        log.readLong();
+                        log.readLong();
                     }else{
-                        raf.readLong();
+                        log.readLong();
                     }
                 }
+                // 从后往前把旧内容盖回去; 磁盘上是这个事务最后写下去的版本(或者更早的), 盖完就是事务开始前的样子
+                Map<PageId, Page> pages = new HashMap<>();
+                for (int i = changes.size() - 1; i >= 0; i--) {
+                    PageChange change = changes.get(i);
+                    Page page = pages.computeIfAbsent(change.getId(), this::diskPage);
+                    pages.put(change.getId(), change.undo(page));
+                }
+                // You will need to make sure that you discard any page from the buffer pool
+                // whose before-image you write back to the table file.
+                for (Page page : pages.values())
+                    installPage(page);
+                for (int[] extent : extents)
+                    undoExtent(extent[0], extent[1], extent[2]);
                 // 重新拨回指针
-                raf.seek(currentOffset);
+                log.seek(currentOffset);
             }
         }
     }
@@ -560,10 +798,13 @@ public class LogFile {
      * is necessary so that start up can happen quickly (without
      * extensive recovery.)
      */
-    public synchronized void shutdown() {
+    public void shutdown() {
         try {
+            stopCheckpointer();
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            synchronized (this) {
+                log.close();
+            }
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -574,81 +815,265 @@ public class LogFile {
      * Recover the database system by ensuring that the updates of
      * committed transactions are installed and that the
      * updates of uncommitted transactions are not installed.
+     * <p>
+     * Recovery makes three passes, in the manner of ARIES:
+     * <ul>
+     * <li> analysis starts from the active transactions and the dirty page
+     * table of the last checkpoint, and scans forward to find out which
+     * transactions committed, which aborted and which were still running
+     * (the losers), and which pages may be missing logged changes;
+     * <li> redo reapplies the changes of committed transactions, starting at
+     * the smallest recLSN in the dirty page table rather than at the start
+     * of the log, and skipping records older than their page's recLSN; the
+     * pages are split among several threads (see setRedoThreads);
+     * <li> undo rolls back the losers and logs an ABORT record for each.
+     * </ul>
+     * There are no compensation records: an aborting transaction is rolled
+     * back on disk before its ABORT record is written, so redo skips the
+     * records of aborted transactions instead of repeating them.
      */
     public void recover() throws IOException {
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
                 currentOffset = 0;
                 recoveryUndecided = false;
-                raf.seek(0); // TODO: 2023/2/27 别忘记调回指针
-                long checkPointStart = raf.readLong();
-                // 都是找失败的事务, 构建map
-                if(checkPointStart == -1){
-                    while (true){
-                        try {
-                            int type = raf.readInt();
-                            long tid = raf.readLong();
-                            react(type,tid,raf,true,false);
-                        }catch (EOFException e){
-                            break;
-                        }
-                    }
-                }else{
-                    raf.seek(checkPointStart);
-                    int type = raf.readInt();
-                    if(type != CHECKPOINT_RECORD) throw new IOException("CHECK指针不指向Check-Point");
-                    raf.readLong();
-                    int size = raf.readInt();
-                    while (size > 0){
-                        long tid = raf.readLong(),offset = raf.readLong();
-                        tidToFirstLogRecord.put(tid,offset);
-                        size--;
-                    }
+                long cpLoc = log.getCheckpoint();
+
+                // analysis: 从检查点里的活跃事务表和脏页表出发
+                tidToFirstLogRecord.clear();
+                Map<PageId, Long> dirtyPages = new HashMap<>();
+                long redoStart = log.getFirstLsn();
+                if (cpLoc != NO_CHECKPOINT_ID) {
+                    log.seek(cpLoc);
+                    if (log.readInt() != CHECKPOINT_RECORD) throw new IOException("CHECK指针不指向Check-Point");
+                    log.readLong();
+                    readCheckpoint(log, tidToFirstLogRecord, dirtyPages);
+                    redoStart = cpLoc;
+                    for (long recLsn : dirtyPages.values())
+                        redoStart = Math.min(redoStart, recLsn);
+                    // 截掉的部分对应的页都已经写回了
+                    redoStart = Math.max(redoStart, log.getFirstLsn());
                 }
-                // undo
-                for (long tid : tidToFirstLogRecord.keySet()) {
+                Set<Long> committed = new HashSet<>();
+                analyze(redoStart, cpLoc, committed, dirtyPages);
+
+                redo(redoStart, committed, dirtyPages);
+
+                // 之后的记录接着追加在文件末尾
+                logBuffer.reset();
+                bufferStart = log.length();
+                currentOffset = bufferStart;
+
+                // undo: 回滚失败的事务, 再记一条ABORT, 下次恢复就不会再回滚一遍
+                for (long tid : new ArrayList<>(tidToFirstLogRecord.keySet())) {
                     rollback(tid);
+                    preAppend();
+                    out.writeInt(ABORT_RECORD);
+                    out.writeLong(tid);
+                    out.writeLong(currentOffset);
+                    postAppend();
+                    tidToFirstLogRecord.remove(tid);
                 }
-                // redo from start
-                raf.seek(0);
-                raf.readLong();
-                while (true){
-                    int type;
-                    try {
-                        type = raf.readInt();
-                        long tid = raf.readLong();
-                        boolean isLoser = tidToFirstLogRecord.containsKey(tid);
-                        react(type,tid,raf,false,!isLoser);
-                    }catch (EOFException e){
+                force();
+            }
+        }
+    }
+
+    /*
+     * Analysis pass, from start to the end of the log: leaves the losers in
+     * tidToFirstLogRecord, collects the committed transactions, and adds the
+     * pages changed after the checkpoint to the dirty page table.
+     */
+    private void analyze(long start, long cpLoc, Set<Long> committed,
+                         Map<PageId, Long> dirtyPages) throws IOException {
+        log.seek(start);
+        while (true) {
+            try {
+                long offset = log.getFilePointer();
+                int type = log.readInt();
+                long tid = log.readLong();
+                switch (type) {
+                    case BEGIN_RECORD:
+                        tidToFirstLogRecord.put(tid, offset);
+                        break;
+                    case COMMIT_RECORD:
+                        tidToFirstLogRecord.remove(tid);
+                        committed.add(tid);
                         break;
+                    case ABORT_RECORD:
+                        // 中止时已经回滚过了
+                        tidToFirstLogRecord.remove(tid);
+                        break;
+                    case UPDATE_RECORD:
+                    case TUPLE_RECORD:
+                        PageChange change = readChange(type, log);
+                        // 检查点之前改的页, 要么在检查点的脏页表里, 要么已经写回了
+                        if (offset > cpLoc)
+                            dirtyPages.putIfAbsent(change.getId(), offset);
+                        break;
+                    case CHECKPOINT_RECORD:
+                        readCheckpoint(log, null, null);
+                        break;
+                    case END_CHECKPOINT_RECORD:
+                        log.readLong();
+                        break;
+                    case EXTENT_RECORD:
+                        // 页内容提交前已经落盘, 不用redo; 没提交的在undo阶段清空
+                        log.skipBytes(3 * INT_SIZE);
+                        break;
+                }
+                log.readLong();
+            } catch (EOFException e) {
+                break;
+            }
+        }
+    }
+
+    /*
+     * Redo pass, from start to the end of the log: reapplies the changes of
+     * committed transactions to pages the dirty page table lists, from the
+     * page's recLSN on. The log is read once, here, and the changes are
+     * handed to redo threads by the hash of their page id, so each page's
+     * changes are applied in log order by one thread, which reads the page
+     * once and writes it once at the end.
+     */
+    private void redo(long start, Set<Long> committed, Map<PageId, Long> dirtyPages) throws IOException {
+        int n = Math.max(1, redoThreads);
+        RedoWorker[] workers = new RedoWorker[n];
+        List<List<PageChange>> batches = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            workers[i] = new RedoWorker(i);
+            workers[i].start();
+            batches.add(new ArrayList<>(REDO_BATCH));
+        }
+        try {
+            log.seek(start);
+            while (true) {
+                try {
+                    long offset = log.getFilePointer();
+                    int type = log.readInt();
+                    long tid = log.readLong();
+                    switch (type) {
+                        case UPDATE_RECORD:
+                        case TUPLE_RECORD:
+                            PageChange change = readChange(type, log);
+                            Long recLsn = dirtyPages.get(change.getId());
+                            if (committed.contains(tid) && recLsn != null && offset >= recLsn) {
+                                int w = (change.getId().hashCode() & Integer.MAX_VALUE) % n;
+                                List<PageChange> batch = batches.get(w);
+                                batch.add(change);
+                                if (batch.size() == REDO_BATCH) {
+                                    workers[w].queue.put(batch);
+                                    batches.set(w, new ArrayList<>(REDO_BATCH));
+                                }
+                            }
+                            break;
+                        case CHECKPOINT_RECORD:
+                            readCheckpoint(log, null, null);
+                            break;
+                        case END_CHECKPOINT_RECORD:
+                            log.readLong();
+                            break;
+                        case EXTENT_RECORD:
+                            log.skipBytes(3 * INT_SIZE);
+                            break;
+                    }
+                    log.readLong();
+                } catch (EOFException e) {
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new IOException("interrupted during redo", e);
+        } finally {
+            // 剩下的记录, 再加一个空批表示结束; 出错了也要让redo线程退出
+            for (int i = 0; i < n; i++) {
+                if (!batches.get(i).isEmpty())
+                    putUninterruptibly(workers[i].queue, batches.get(i));
+                putUninterruptibly(workers[i].queue, Collections.emptyList());
+            }
+            for (RedoWorker worker : workers) {
+                while (worker.isAlive()) {
+                    try {
+                        worker.join();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
                     }
                 }
-//                tidToFirstLogRecord.clear();
             }
         }
+        // redo线程已经写回了自己的页, 缓冲池(我们拿着它的锁)里的旧副本在这里丢掉
+        for (RedoWorker worker : workers) {
+            if (worker.error != null)
+                throw new IOException("redo failed", worker.error);
+            for (PageId pid : worker.pages.keySet())
+                Database.getBufferPool().removePage(pid);
+        }
     }
 
-    public void react(int type,long tid,RandomAccessFile raf,boolean toBuildMap,boolean redo) throws IOException {
-        switch (type){
-            case ABORT_RECORD:raf.readLong();break;
-            case COMMIT_RECORD:{
-                if(toBuildMap) tidToFirstLogRecord.remove(tid);
-                raf.readLong();
-                break;
+    private static <T> void putUninterruptibly(BlockingQueue<T> queue, T item) {
+        while (true) {
+            try {
+                queue.put(item);
+                return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
-            case UPDATE_RECORD:{
-                // 无脑redo
-                Page before = readPageData(raf), after = readPageData(raf);
-                if(redo)
-                    Database.getCatalog().getDatabaseFile(after.getId().getTableId()).writePage(after);
-                raf.readLong();
-                //DEBUG_END
-                break;
+        }
+    }
+
+    /**
+     * Sets how many threads redo pages during recovery; 1 redoes them in a
+     * single thread. Defaults to the number of processors, up to 4.
+     */
+    public void setRedoThreads(int n) {
+        if (n < 1)
+            throw new IllegalArgumentException("need at least one redo thread");
+        redoThreads = n;
+    }
+
+    /*
+     * A redo thread: replays the batches of changes it is handed, each page
+     * read once from disk, and writes every page it touched when it gets an
+     * empty batch. After an error it keeps taking batches until the end, so
+     * the log reader never blocks on its queue.
+     */
+    private class RedoWorker extends Thread {
+        final BlockingQueue<List<PageChange>> queue = new ArrayBlockingQueue<>(REDO_QUEUE);
+        final Map<PageId, Page> pages = new HashMap<>();
+        volatile Throwable error = null;
+
+        RedoWorker(int i) {
+            super("simpledb-redo-" + i);
+            setDaemon(true);
+        }
+
+        public void run() {
+            while (true) {
+                List<PageChange> batch;
+                try {
+                    batch = queue.take();
+                } catch (InterruptedException e) {
+                    continue; // 只有空批才结束
+                }
+                if (batch.isEmpty())
+                    break;
+                if (error != null) continue;
+                try {
+                    for (PageChange change : batch) {
+                        Page page = pages.computeIfAbsent(change.getId(), LogFile.this::diskPage);
+                        pages.put(change.getId(), change.redo(page));
+                    }
+                } catch (IOException | RuntimeException e) {
+                    error = e;
+                }
             }
-            case BEGIN_RECORD:{
-                long start = raf.readLong(); // 处理记录后面的offset
-                if(toBuildMap)tidToFirstLogRecord.put(tid, start);
-                break;
+            if (error != null) return;
+            try {
+                for (Page page : pages.values())
+                    Database.getCatalog().getDatabaseFile(page.getId().getTableId()).writePage(page);
+            } catch (IOException | RuntimeException e) {
+                error = e;
             }
         }
     }
@@ -657,70 +1082,97 @@ public class LogFile {
      * Print out a human readable represenation of the log
      */
     public void print() throws IOException {
-        long curOffset = raf.getFilePointer();
-
-        raf.seek(0);
+        synchronized (this) {
+            flushBuffer();
+        }
+        long curOffset = log.getFilePointer();
 
-        System.out.println("0: checkpoint record at offset " + raf.readLong());
+        System.out.println("checkpoint record at offset " + log.getCheckpoint()
+                + ", log starts at offset " + log.getFirstLsn());
+        log.seek(log.getFirstLsn());
 
         while (true) {
             try {
-                int cpType = raf.readInt();
-                long cpTid = raf.readLong();
+                int cpType = log.readInt();
+                long cpTid = log.readLong();
 
                 System.out.println("\n");
-                System.out.println((raf.getFilePointer() - (INT_SIZE + LONG_SIZE)) + ": RECORD TYPE " + cpType);
-                System.out.println((raf.getFilePointer() - LONG_SIZE) + ": TID " + cpTid);
+                System.out.println((log.getFilePointer() - (INT_SIZE + LONG_SIZE)) + ": RECORD TYPE " + cpType);
+                System.out.println((log.getFilePointer() - LONG_SIZE) + ": TID " + cpTid);
 
                 switch (cpType) {
                     case BEGIN_RECORD:
                         System.out.println(" (BEGIN)");
-                        System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+                        System.out.println(log.getFilePointer() + ": RECORD START OFFSET: " + log.readLong());
                         break;
                     case ABORT_RECORD:
                         System.out.println(" (ABORT)");
-                        System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+                        System.out.println(log.getFilePointer() + ": RECORD START OFFSET: " + log.readLong());
                         break;
                     case COMMIT_RECORD:
                         System.out.println(" (COMMIT)");
-                        System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+                        System.out.println(log.getFilePointer() + ": RECORD START OFFSET: " + log.readLong());
                         break;
 
                     case CHECKPOINT_RECORD:
                         System.out.println(" (CHECKPOINT)");
-                        int numTransactions = raf.readInt();
-                        System.out.println((raf.getFilePointer() - INT_SIZE) + ": NUMBER OF OUTSTANDING RECORDS: " + numTransactions);
+                        int numTransactions = log.readInt();
+                        System.out.println((log.getFilePointer() - INT_SIZE) + ": NUMBER OF OUTSTANDING RECORDS: " + numTransactions);
 
                         while (numTransactions-- > 0) {
-                            long tid = raf.readLong();
-                            long firstRecord = raf.readLong();
-                            System.out.println((raf.getFilePointer() - (LONG_SIZE + LONG_SIZE)) + ": TID: " + tid);
-                            System.out.println((raf.getFilePointer() - LONG_SIZE) + ": FIRST LOG RECORD: " + firstRecord);
+                            long tid = log.readLong();
+                            long firstRecord = log.readLong();
+                            System.out.println((log.getFilePointer() - (LONG_SIZE + LONG_SIZE)) + ": TID: " + tid);
+                            System.out.println((log.getFilePointer() - LONG_SIZE) + ": FIRST LOG RECORD: " + firstRecord);
                         }
-                        System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+                        int numDirty = log.readInt();
+                        System.out.println((log.getFilePointer() - INT_SIZE) + ": NUMBER OF DIRTY PAGES: " + numDirty);
+                        while (numDirty-- > 0) {
+                            long pidStart = log.getFilePointer();
+                            PageId pid = PageChange.readPageId(log);
+                            System.out.println(pidStart + ": PAGE: " + pid.getTableId() + "/" + pid.getPageNumber()
+                                    + " RECLSN: " + log.readLong());
+                        }
+                        System.out.println(log.getFilePointer() + ": RECORD START OFFSET: " + log.readLong());
 
+                        break;
+                    case END_CHECKPOINT_RECORD:
+                        System.out.println(" (END CHECKPOINT)");
+                        System.out.println(log.getFilePointer() + ": CHECKPOINT RECORD AT: " + log.readLong());
+                        System.out.println(log.getFilePointer() + ": RECORD START OFFSET: " + log.readLong());
                         break;
                     case UPDATE_RECORD:
                         System.out.println(" (UPDATE)");
 
-                        long start = raf.getFilePointer();
-                        Page before = readPageData(raf);
+                        long start = log.getFilePointer();
+                        PageDelta delta = PageDelta.read(log);
 
-                        long middle = raf.getFilePointer();
-                        Page after = readPageData(raf);
-
-                        System.out.println(start + ": before image table id " + before.getId().getTableId());
-                        System.out.println((start + INT_SIZE) + ": before image page number " + before.getId().getPageNumber());
-                        System.out.println((start + INT_SIZE) + " TO " + (middle - INT_SIZE) + ": page data");
+                        System.out.println(start + ": table id " + delta.getId().getTableId());
+                        System.out.println(start + ": page number " + delta.getId().getPageNumber());
+                        System.out.println(start + " TO " + log.getFilePointer() + ": " + delta.numRanges()
+                                + " changed ranges, " + delta.changedBytes() + " bytes");
+                        System.out.println(log.getFilePointer() + ": RECORD START OFFSET: " + log.readLong());
+                        break;
+                    case TUPLE_RECORD:
+                        System.out.println(" (TUPLE)");
 
-                        System.out.println(middle + ": after image table id " + after.getId().getTableId());
-                        System.out.println((middle + INT_SIZE) + ": after image page number " + after.getId().getPageNumber());
-                        System.out.println((middle + INT_SIZE) + " TO " + (raf.getFilePointer()) + ": page data");
+                        long tupleStart = log.getFilePointer();
+                        TupleChanges tuples = TupleChanges.read(log);
+                        System.out.println(tupleStart + ": table id " + tuples.getId().getTableId());
+                        System.out.println(tupleStart + ": page number " + tuples.getId().getPageNumber());
+                        System.out.println(tupleStart + " TO " + log.getFilePointer() + ": " + tuples.size() + " slot writes");
 
-                        System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+                        System.out.println(log.getFilePointer() + ": RECORD START OFFSET: " + log.readLong());
 
 
 
+                        break;
+                    case EXTENT_RECORD:
+                        System.out.println(" (EXTENT)");
+                        System.out.println(log.getFilePointer() + ": TABLE ID: " + log.readInt());
+                        System.out.println(log.getFilePointer() + ": FIRST PAGE: " + log.readInt());
+                        System.out.println(log.getFilePointer() + ": NUMBER OF PAGES: " + log.readInt());
+                        System.out.println(log.getFilePointer() + ": RECORD START OFFSET: " + log.readLong());
                         break;
                 }
 
@@ -731,11 +1183,208 @@ public class LogFile {
         }
 
         // Return the file pointer to its original position
-        raf.seek(curOffset);
+        log.seek(curOffset);
+    }
+
+    /**
+     * Force every record appended so far to disk. Callers that do not hold
+     * the LogFile lock hand the work to the group commit flusher and wait,
+     * so that concurrent callers share one fsync.
+     */
+    public void force() throws IOException {
+        if (Thread.holdsLock(this)) {
+            // 持有日志锁时刷盘线程进不来, 只能自己刷
+            flushBuffer();
+            long target = currentOffset, records = appendedRecords;
+            log.force();
+            markDurable(target, records);
+            return;
+        }
+        long end;
+        synchronized (this) {
+            end = currentOffset;
+        }
+        awaitDurable(end);
+    }
+
+    /**
+     * Make sure the record with the given LSN, and every record before it,
+     * is on disk. Returns right away if it already is, so the BufferPool
+     * calls this with a page's pageLSN before writing the page (write-ahead
+     * logging) and only pays for a force when the page's last record is
+     * still buffered.
+     *
+     * @param lsn the LSN of a log record, e.g. {@link Page#getLSN()}
+     */
+    public void forceUpTo(long lsn) throws IOException {
+        if (lsn < 0) return;
+        if (Thread.holdsLock(this)) {
+            synchronized (flushMonitor) {
+                if (durableLsn > lsn) return;
+            }
+            force();
+            return;
+        }
+        awaitDurable(lsn + 1);
+    }
+
+    /**
+     * Sets how long the group commit flusher waits for more committers
+     * after the first one asks for a force, trading commit latency for fewer
+     * fsyncs. The default is 0: the flusher starts right away, and
+     * committers that arrive while it is forcing share the next batch.
+     *
+     * @param micros the maximum extra delay of a batch, in microseconds
+     */
+    public void setGroupCommitDelay(long micros) {
+        this.groupCommitDelayMicros = micros;
+    }
+
+    /**
+     * @return the number of fsyncs the group commit flusher has done
+     */
+    public long getFlushBatches() {
+        synchronized (flushMonitor) {
+            return flushBatches;
+        }
+    }
+
+    /**
+     * @return the number of records made durable by the flusher's batches;
+     *         divided by {@link #getFlushBatches()} this is the mean batch size
+     */
+    public long getFlushedBatchRecords() {
+        synchronized (flushMonitor) {
+            return flushedBatchRecords;
+        }
     }
 
-    public synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+    /**
+     * @return the largest number of records made durable by one batch
+     */
+    public long getMaxBatchRecords() {
+        synchronized (flushMonitor) {
+            return maxBatchRecords;
+        }
+    }
+
+    /**
+     * @return the number of force and commit calls that waited for the flusher
+     */
+    public long getGroupCommitWaits() {
+        synchronized (flushMonitor) {
+            return groupCommitWaits;
+        }
+    }
+
+    /**
+     * @return the LSN up to which (exclusive) the log is known to be on disk
+     */
+    public long getDurableLSN() {
+        synchronized (flushMonitor) {
+            return durableLsn;
+        }
+    }
+
+    /*
+     * Wait until the flusher has made everything before lsn durable. Fails
+     * if a batch fails while we wait; later callers start a new flusher,
+     * which tries again.
+     */
+    private void awaitDurable(long lsn) throws IOException {
+        synchronized (flushMonitor) {
+            if (durableLsn >= lsn) return;
+            long failures = flushFailures;
+            groupCommitWaits++;
+            requestedLsn = Math.max(requestedLsn, lsn);
+            if (flusher == null) {
+                flusher = new Thread(this::runFlusher, "simpledb-log-flusher");
+                flusher.setDaemon(true);
+                flusher.start();
+            }
+            flushMonitor.notifyAll();
+            while (durableLsn < lsn) {
+                if (flushFailures != failures)
+                    throw new IOException("log force failed", flushError);
+                try {
+                    flushMonitor.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted while waiting for log force");
+                }
+            }
+        }
+    }
+
+    /* Record that everything before lsn (records records) is on disk and wake the waiters. */
+    private void markDurable(long lsn, long records) {
+        synchronized (flushMonitor) {
+            if (records > flushedRecords)
+                flushedRecords = records;
+            if (lsn > durableLsn) {
+                durableLsn = lsn;
+                flushMonitor.notifyAll();
+            }
+        }
+    }
+
+    /*
+     * The group commit flusher: waits for a request, optionally lingers to
+     * let more committers join, then writes out the log buffer and forces
+     * everything appended so far with one fsync. Exits after being idle for
+     * a while; the next waiter starts a new one.
+     */
+    private void runFlusher() {
+        while (true) {
+            synchronized (flushMonitor) {
+                while (requestedLsn <= durableLsn) {
+                    try {
+                        flushMonitor.wait(FLUSHER_IDLE_MILLIS);
+                    } catch (InterruptedException e) {
+                        flusher = null;
+                        return;
+                    }
+                    if (requestedLsn <= durableLsn) {
+                        flusher = null;
+                        return;
+                    }
+                }
+            }
+            try {
+                long delay = groupCommitDelayMicros;
+                if (delay > 0)
+                    TimeUnit.MICROSECONDS.sleep(delay);
+            } catch (InterruptedException e) {
+                // 不等了, 直接刷
+            }
+            long target, records;
+            try {
+                synchronized (this) {
+                    flushBuffer();
+                    target = currentOffset;
+                    records = appendedRecords;
+                }
+                log.force(); // 不拿日志锁, 别的事务可以接着追加
+            } catch (IOException e) {
+                synchronized (flushMonitor) {
+                    flushError = e; // 只交给现在在等的人, 之后的请求重新刷
+                    flushFailures++;
+                    flusher = null;
+                    flushMonitor.notifyAll();
+                }
+                return;
+            }
+            synchronized (flushMonitor) {
+                long batch = records - flushedRecords;
+                if (batch > 0) {
+                    flushBatches++;
+                    flushedBatchRecords += batch;
+                    maxBatchRecords = Math.max(maxBatchRecords, batch);
+                    Debug.log("LOG FORCE: %d records in one batch", batch);
+                }
+            }
+            markDurable(target, records);
+        }
     }
 
 }
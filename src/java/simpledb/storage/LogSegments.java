@@ -0,0 +1,357 @@
+package simpledb.storage;
+
+import simpledb.common.Debug;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * LogSegments stores the log of a {@link LogFile} as a run of fixed-size
+ * segment files addressed by LSN: byte n of the log is byte
+ * n % segmentSize of segment n / segmentSize, which lives in a file named
+ * after the control file plus the segment number (log.00000003). Records are
+ * only ever appended, and truncating the front of the log deletes whole
+ * segments instead of copying the rest of the log into a new file.
+ * <p>
+ * The control file holds the segment size, the LSN of the CHECKPOINT
+ * record of the last completed checkpoint and the first LSN still in the log.
+ * <p>
+ * Reads go through a cursor: {@link #seek} to an LSN, then read with the
+ * DataInput methods, which throw EOFException at the end of the log. The
+ * LogFile lock guards everything except {@link #force}, which the group
+ * commit flusher calls while other threads append.
+ */
+class LogSegments implements DataInput {
+
+    static final long NO_CHECKPOINT = -1;
+
+    private static final int MAGIC = 0x534c4f47; // "SLOG"
+    private static final int CONTROL_SIZE = 24;  // magic, segment size, checkpoint, first LSN
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    private final File control;
+    private final RandomAccessFile controlRaf;
+    private int segmentSize;
+    private long checkpoint = NO_CHECKPOINT;
+    private long first = 0;
+    private long end = 0;
+
+    private final Map<Long, FileChannel> segments = new HashMap<>();
+    private final Set<FileChannel> unforced = new LinkedHashSet<>(); // protected by this
+    private final Object forceLock = new Object();
+
+    // 读游标, 带一个读缓冲; 日志只追加, 缓冲里的字节不会过期, 除非截断或者清空
+    private long pos = 0;
+    private final byte[] readBuffer = new byte[READ_BUFFER_SIZE];
+    private long readBufferStart = 0;
+    private int readBufferLength = 0;
+    private final DataInputStream in = new DataInputStream(new InputStream() {
+        private final byte[] one = new byte[1];
+
+        public int read() throws IOException {
+            return readAt(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            return len == 0 ? 0 : readAt(b, off, len);
+        }
+    });
+
+    /**
+     * Opens the log kept under the given control file. If there is no such
+     * log, it is empty until {@link #reset} starts one.
+     *
+     * @param control     the control file
+     * @param segmentSize the segment size reset uses
+     */
+    LogSegments(File control, int segmentSize) throws IOException {
+        this.control = control;
+        this.controlRaf = new RandomAccessFile(control, "rw");
+        this.segmentSize = segmentSize;
+        if (controlRaf.length() >= CONTROL_SIZE) {
+            controlRaf.seek(0);
+            if (controlRaf.readInt() == MAGIC) {
+                this.segmentSize = controlRaf.readInt();
+                checkpoint = controlRaf.readLong();
+                first = controlRaf.readLong();
+                end = first;
+                for (long idx = first / this.segmentSize; segmentFile(idx).exists(); idx++)
+                    end = idx * this.segmentSize + segmentFile(idx).length();
+            }
+        }
+    }
+
+    /**
+     * Throws away the whole log and starts an empty one at LSN 0.
+     */
+    void reset(int newSegmentSize) throws IOException {
+        closeSegments();
+        String prefix = control.getName() + ".";
+        File[] old = control.getAbsoluteFile().getParentFile().listFiles(
+                (dir, name) -> name.startsWith(prefix) && name.substring(prefix.length()).matches("[0-9]+"));
+        if (old != null)
+            for (File f : old)
+                f.delete();
+        segmentSize = newSegmentSize;
+        checkpoint = NO_CHECKPOINT;
+        first = 0;
+        end = 0;
+        pos = 0;
+        readBufferLength = 0;
+        writeControl();
+    }
+
+    /**
+     * Drops every segment that only holds records before lsn. Records from
+     * lsn on keep their LSNs.
+     */
+    void truncate(long lsn) throws IOException {
+        if (lsn <= first) return;
+        long oldFirst = first;
+        first = Math.min(lsn, end);
+        writeControl(); // 先改控制文件, 再删段
+        for (long idx = oldFirst / segmentSize; idx < first / segmentSize; idx++) {
+            FileChannel ch = segments.remove(idx);
+            if (ch != null) {
+                synchronized (this) {
+                    unforced.remove(ch);
+                }
+                ch.close();
+            }
+            segmentFile(idx).delete();
+        }
+        if (readBufferStart < first)
+            readBufferLength = 0;
+        Debug.log("TRUNCATING LOG; NOW LSN " + first + " TO " + end);
+    }
+
+    /**
+     * @return the LSN of the CHECKPOINT record of the last completed
+     *         checkpoint, or {@link #NO_CHECKPOINT}
+     */
+    long getCheckpoint() {
+        return checkpoint;
+    }
+
+    /**
+     * Records the last completed checkpoint in the control file.
+     */
+    void setCheckpoint(long lsn) throws IOException {
+        checkpoint = lsn;
+        writeControl();
+    }
+
+    /**
+     * @return the first LSN still in the log
+     */
+    long getFirstLsn() {
+        return first;
+    }
+
+    /**
+     * @return the LSN just past the last byte written to the segments
+     */
+    long length() {
+        return end;
+    }
+
+    int getSegmentSize() {
+        return segmentSize;
+    }
+
+    /**
+     * @return the number of segment files the log spans now
+     */
+    int numSegments() {
+        if (end == first) return 0;
+        return (int) ((end - 1) / segmentSize - first / segmentSize + 1);
+    }
+
+    /**
+     * Appends bytes at the end of the log, starting a new segment whenever
+     * one fills up. They are not durable until {@link #force}.
+     */
+    void append(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            long idx = end / segmentSize;
+            int within = (int) (end % segmentSize);
+            int n = Math.min(len, segmentSize - within);
+            FileChannel ch = segment(idx);
+            ByteBuffer buf = ByteBuffer.wrap(b, off, n);
+            while (buf.hasRemaining())
+                ch.write(buf, within + buf.position() - off);
+            synchronized (this) {
+                unforced.add(ch);
+            }
+            end += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Forces every segment appended to since the last force. Safe to call
+     * while another thread appends; a force that overlaps another one waits
+     * for it, so that returning always means the earlier appends are durable.
+     */
+    void force() throws IOException {
+        synchronized (forceLock) {
+            List<FileChannel> channels;
+            synchronized (this) {
+                channels = new ArrayList<>(unforced);
+                unforced.clear();
+            }
+            for (FileChannel ch : channels) {
+                try {
+                    ch.force(true);
+                } catch (ClosedChannelException e) {
+                    // 段被截断删掉了, 里面的记录已经用不着了
+                }
+            }
+        }
+    }
+
+    void close() throws IOException {
+        closeSegments();
+        controlRaf.close();
+    }
+
+    void seek(long lsn) {
+        pos = lsn;
+    }
+
+    long getFilePointer() {
+        return pos;
+    }
+
+    private File segmentFile(long idx) {
+        return new File(control.getPath() + "." + String.format("%08d", idx));
+    }
+
+    private FileChannel segment(long idx) throws IOException {
+        FileChannel ch = segments.get(idx);
+        if (ch == null) {
+            ch = new RandomAccessFile(segmentFile(idx), "rw").getChannel();
+            segments.put(idx, ch);
+        }
+        return ch;
+    }
+
+    private void closeSegments() throws IOException {
+        synchronized (this) {
+            unforced.clear();
+        }
+        for (FileChannel ch : segments.values())
+            ch.close();
+        segments.clear();
+    }
+
+    private void writeControl() throws IOException {
+        controlRaf.seek(0);
+        controlRaf.writeInt(MAGIC);
+        controlRaf.writeInt(segmentSize);
+        controlRaf.writeLong(checkpoint);
+        controlRaf.writeLong(first);
+        controlRaf.getChannel().force(true);
+    }
+
+    /* Read from the cursor; -1 at the end of the log. */
+    private int readAt(byte[] b, int off, int len) throws IOException {
+        if (pos >= end) return -1;
+        if (pos < first)
+            throw new IOException("LSN " + pos + " has been truncated from the log");
+        if (pos < readBufferStart || pos >= readBufferStart + readBufferLength) {
+            long idx = pos / segmentSize;
+            int within = (int) (pos % segmentSize);
+            int n = (int) Math.min(READ_BUFFER_SIZE, Math.min(segmentSize - within, end - pos));
+            FileChannel ch = segment(idx);
+            ByteBuffer buf = ByteBuffer.wrap(readBuffer, 0, n);
+            while (buf.hasRemaining()) {
+                if (ch.read(buf, within + buf.position()) < 0)
+                    throw new EOFException("log segment " + idx + " is shorter than the log");
+            }
+            readBufferStart = pos;
+            readBufferLength = n;
+        }
+        int n = (int) Math.min(len, readBufferStart + readBufferLength - pos);
+        System.arraycopy(readBuffer, (int) (pos - readBufferStart), b, off, n);
+        pos += n;
+        return n;
+    }
+
+    public void readFully(byte[] b) throws IOException {
+        in.readFully(b);
+    }
+
+    public void readFully(byte[] b, int off, int len) throws IOException {
+        in.readFully(b, off, len);
+    }
+
+    public int skipBytes(int n) {
+        int skipped = (int) Math.max(0, Math.min(n, end - pos));
+        pos += skipped;
+        return skipped;
+    }
+
+    public boolean readBoolean() throws IOException {
+        return in.readBoolean();
+    }
+
+    public byte readByte() throws IOException {
+        return in.readByte();
+    }
+
+    public int readUnsignedByte() throws IOException {
+        return in.readUnsignedByte();
+    }
+
+    public short readShort() throws IOException {
+        return in.readShort();
+    }
+
+    public int readUnsignedShort() throws IOException {
+        return in.readUnsignedShort();
+    }
+
+    public char readChar() throws IOException {
+        return in.readChar();
+    }
+
+    public int readInt() throws IOException {
+        return in.readInt();
+    }
+
+    public long readLong() throws IOException {
+        return in.readLong();
+    }
+
+    public float readFloat() throws IOException {
+        return in.readFloat();
+    }
+
+    public double readDouble() throws IOException {
+        return in.readDouble();
+    }
+
+    public String readLine() {
+        throw new UnsupportedOperationException("the log has no lines");
+    }
+
+    public String readUTF() throws IOException {
+        return in.readUTF();
+    }
+}
@@ -0,0 +1,175 @@
+package simpledb.storage;
+
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+ * LRU-K replacement (O'Neil, O'Neil and Weikum), by default with K = 2.
+ * <p>
+ * Each page keeps the times of its last K uncorrelated references. The victim
+ * is the page whose K-th most recent reference is oldest; a page that has been
+ * referenced fewer than K times has an infinite backward distance and goes
+ * first, oldest first. A single pass of a sequential scan therefore only
+ * displaces other once-referenced pages, while hot pages survive it.
+ * <p>
+ * Time is a logical clock that advances on every reference.
+ * <ul>
+ * <li> References to a page within the <em>correlated reference period</em>
+ * of its previous reference (e.g. repeated lookups by one operation) count as
+ * a single reference, and a page is not evicted while it is still inside that
+ * period if any other candidate exists.
+ * <li> The history of evicted pages is retained for the <em>retained
+ * information period</em>, so a page that is re-read soon after its eviction
+ * remembers that it was hot. Older history is aged out.
+ * </ul>
+ *
+ * @see BufferPool
+ */
+public class LruKReplacementPolicy implements ReplacementPolicy {
+
+    public static final int DEFAULT_K = 2;
+
+    private final int k;
+    private final long correlatedPeriod;
+    private final long retainedPeriod;
+    private final int maxRetained;
+
+    private long clock = 0;
+    private long nextSeq = 0;
+
+    /** history of every resident page */
+    private final Map<PageId, History> resident = new HashMap<>();
+    /** resident pages ordered by K-th backward distance, furthest first */
+    private final TreeSet<History> byDistance = new TreeSet<>(LruKReplacementPolicy::compareDistance);
+    /** history of evicted pages, in eviction order */
+    private final LinkedHashMap<PageId, History> retained = new LinkedHashMap<>();
+
+    private static class History {
+        final PageId pid;
+        final long[] hist; // hist[0] is the most recent uncorrelated reference, 0 = never
+        long last;         // most recent reference, correlated or not
+        long seq;          // tie breaker for the ordered set
+        long evictedAt;
+
+        History(PageId pid, int k) {
+            this.pid = pid;
+            this.hist = new long[k];
+        }
+    }
+
+    /**
+     * Creates an LRU-2 policy with a correlated reference period of a few
+     * references and a retained information period of a few pool sizes.
+     *
+     * @param capacity the number of pages in the BufferPool
+     */
+    public LruKReplacementPolicy(int capacity) {
+        this(capacity, DEFAULT_K, 4, 4L * capacity);
+    }
+
+    /**
+     * @param capacity         the number of pages in the BufferPool
+     * @param k                the number of references remembered per page
+     * @param correlatedPeriod references closer than this many clock ticks are
+     *                         treated as one
+     * @param retainedPeriod   clock ticks the history of an evicted page is kept
+     */
+    public LruKReplacementPolicy(int capacity, int k, long correlatedPeriod, long retainedPeriod) {
+        if (capacity <= 0 || k <= 0)
+            throw new IllegalArgumentException("capacity and k must be positive");
+        this.k = k;
+        this.correlatedPeriod = correlatedPeriod;
+        this.retainedPeriod = retainedPeriod;
+        this.maxRetained = 4 * capacity;
+    }
+
+    private static int compareDistance(History a, History b) {
+        int k = a.hist.length;
+        int c = Long.compare(a.hist[k - 1], b.hist[k - 1]);
+        if (c != 0) return c;
+        c = Long.compare(a.hist[0], b.hist[0]);
+        if (c != 0) return c;
+        return Long.compare(a.seq, b.seq);
+    }
+
+    /* Record an uncorrelated reference at time now, collapsing the previous correlated burst. */
+    private void shift(History h, long now) {
+        long correlated = h.last - h.hist[0];
+        for (int i = k - 1; i > 0; i--) {
+            h.hist[i] = h.hist[i - 1] == 0 ? 0 : h.hist[i - 1] + correlated;
+        }
+        h.hist[0] = now;
+        h.last = now;
+    }
+
+    public synchronized void recordAdmit(PageId pid) {
+        long now = ++clock;
+        History h = resident.get(pid);
+        if (h != null) {
+            reference(h, now);
+            return;
+        }
+        h = retained.remove(pid);
+        if (h == null) {
+            h = new History(pid, k);
+            h.hist[0] = now;
+            h.last = now;
+        } else {
+            shift(h, now);
+        }
+        h.seq = nextSeq++;
+        resident.put(pid, h);
+        byDistance.add(h);
+    }
+
+    public synchronized void recordAccess(PageId pid) {
+        long now = ++clock;
+        History h = resident.get(pid);
+        if (h != null)
+            reference(h, now);
+    }
+
+    private void reference(History h, long now) {
+        if (now - h.last <= correlatedPeriod) {
+            // correlated: does not change the backward distance
+            h.last = now;
+            return;
+        }
+        byDistance.remove(h);
+        shift(h, now);
+        byDistance.add(h);
+    }
+
+    public synchronized void remove(PageId pid) {
+        History h = resident.remove(pid);
+        if (h == null) return;
+        byDistance.remove(h);
+        h.evictedAt = clock;
+        retained.put(pid, h);
+        ageRetained();
+    }
+
+    /* Drop history of pages that have been out of the pool for too long. */
+    private void ageRetained() {
+        Iterator<History> it = retained.values().iterator();
+        while (it.hasNext()) {
+            History h = it.next();
+            if (clock - h.evictedAt <= retainedPeriod && retained.size() <= maxRetained)
+                break;
+            it.remove();
+        }
+    }
+
+    public synchronized PageId chooseVictim(Predicate<PageId> evictable) {
+        PageId correlatedCandidate = null;
+        for (History h : byDistance) {
+            if (!evictable.test(h.pid))
+                continue;
+            if (clock - h.last > correlatedPeriod)
+                return h.pid;
+            if (correlatedCandidate == null)
+                correlatedCandidate = h.pid;
+        }
+        return correlatedCandidate;
+    }
+}
@@ -59,4 +59,19 @@ public interface Page {
      * copy current content to the before image.
      */
     void setBeforeImage();
+
+    /**
+     * Returns the pageLSN: the LSN of the last log record written for this
+     * page, or -1 if none was written since the page was read. The log
+     * must be forced up to this LSN before the page goes to disk. Page
+     * formats have no room for it, so it is only kept in memory.
+     *
+     * @see LogFile#forceUpTo
+     */
+    long getLSN();
+
+    /**
+     * Sets the pageLSN; called by the LogFile when it logs this page.
+     */
+    void setLSN(long lsn);
 }
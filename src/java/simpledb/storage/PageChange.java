@@ -0,0 +1,64 @@
+package simpledb.storage;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+
+/**
+ * The body of a log record that changes one page: a {@link PageDelta} for
+ * UPDATE records, or a list of slot writes ({@link TupleChanges}) for TUPLE
+ * records. Recovery applies either kind the same way, in log order for redo
+ * and in reverse for undo.
+ */
+interface PageChange {
+
+    /**
+     * @return the page this change applies to
+     */
+    PageId getId();
+
+    /**
+     * Applies the change to page and returns the result, which may be a new
+     * page object.
+     */
+    Page redo(Page page) throws IOException;
+
+    /**
+     * Reverts the change on page and returns the result, which may be a new
+     * page object.
+     */
+    Page undo(Page page) throws IOException;
+
+    void write(DataOutput out) throws IOException;
+
+    /*
+     * page id is:
+     * id class name
+     * id class bytes
+     * id class data
+     */
+    static void writePageId(DataOutput out, PageId pid) throws IOException {
+        int[] pageInfo = pid.serialize();
+        out.writeUTF(pid.getClass().getName());
+        out.writeInt(pageInfo.length);
+        for (int j : pageInfo)
+            out.writeInt(j);
+    }
+
+    static PageId readPageId(DataInput in) throws IOException {
+        String idClassName = in.readUTF();
+        try {
+            Class<?> idClass = Class.forName(idClassName);
+            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
+            int numIdArgs = in.readInt();
+            Object[] idArgs = new Object[numIdArgs];
+            for (int i = 0; i < numIdArgs; i++)
+                idArgs[i] = in.readInt();
+            return (PageId) idConsts[0].newInstance(idArgs);
+        } catch (ClassNotFoundException | InvocationTargetException | IllegalAccessException | InstantiationException e) {
+            throw new IOException("could not read page id of class " + idClassName + ": " + e);
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package simpledb.storage;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * PageDelta is the body of an UPDATE log record: the byte ranges in which
+ * the after-image of a page differs from its before-image, together with the
+ * old and the new bytes of each range.
+ * <p>
+ * Redo copies the new bytes of every range over a page, and undo copies the
+ * old ones. Unlike an XOR delta, this does not require the page to be in
+ * exactly the before (or after) state of the record. With STEAL and NO-FORCE
+ * the version of a page on disk may be older or newer than the record being
+ * replayed, and replaying the records in log order (or in reverse, for undo)
+ * still ends with the right bytes.
+ * <p>
+ * Ranges less than {@link #MERGE_GAP} bytes apart are merged, because a range
+ * header costs as much as that many unchanged bytes.
+ */
+class PageDelta implements PageChange {
+
+    static final int MERGE_GAP = 8; // offset + length
+
+    private final PageId pid;
+    private final String pageClassName;
+    private final int pageSize;
+    private final int[] offsets;
+    private final byte[][] oldBytes;
+    private final byte[][] newBytes;
+
+    private PageDelta(PageId pid, String pageClassName, int pageSize,
+                      int[] offsets, byte[][] oldBytes, byte[][] newBytes) {
+        this.pid = pid;
+        this.pageClassName = pageClassName;
+        this.pageSize = pageSize;
+        this.offsets = offsets;
+        this.oldBytes = oldBytes;
+        this.newBytes = newBytes;
+    }
+
+    /**
+     * Computes the delta that turns before into after.
+     */
+    static PageDelta diff(Page before, Page after) {
+        byte[] b = before.getPageData(), a = after.getPageData();
+        if (a.length != b.length)
+            throw new IllegalArgumentException("before and after images of " + after.getId() + " differ in size");
+        List<int[]> ranges = new ArrayList<>();
+        int i = 0;
+        while (i < a.length) {
+            if (a[i] == b[i]) {
+                i++;
+                continue;
+            }
+            int start = i, end = i + 1;
+            // 往后找, 直到连续 MERGE_GAP 个字节都没变
+            int j = end;
+            while (j < a.length && j - end < MERGE_GAP) {
+                if (a[j] != b[j]) end = j + 1;
+                j++;
+            }
+            ranges.add(new int[]{start, end - start});
+            i = j;
+        }
+        int[] offsets = new int[ranges.size()];
+        byte[][] oldBytes = new byte[ranges.size()][], newBytes = new byte[ranges.size()][];
+        for (int r = 0; r < ranges.size(); r++) {
+            int off = ranges.get(r)[0], len = ranges.get(r)[1];
+            offsets[r] = off;
+            oldBytes[r] = new byte[len];
+            newBytes[r] = new byte[len];
+            System.arraycopy(b, off, oldBytes[r], 0, len);
+            System.arraycopy(a, off, newBytes[r], 0, len);
+        }
+        return new PageDelta(after.getId(), after.getClass().getName(), a.length, offsets, oldBytes, newBytes);
+    }
+
+    public PageId getId() {
+        return pid;
+    }
+
+    /**
+     * @return the number of changed byte ranges
+     */
+    int numRanges() {
+        return offsets.length;
+    }
+
+    /**
+     * @return the number of changed bytes, counting merged gaps
+     */
+    int changedBytes() {
+        int n = 0;
+        for (byte[] r : newBytes)
+            n += r.length;
+        return n;
+    }
+
+    /**
+     * Copies the new bytes of every range over the page.
+     */
+    public Page redo(Page page) throws IOException {
+        return apply(page, newBytes);
+    }
+
+    /**
+     * Copies the old bytes of every range over the page.
+     */
+    public Page undo(Page page) throws IOException {
+        return apply(page, oldBytes);
+    }
+
+    private Page apply(Page page, byte[][] bytes) throws IOException {
+        byte[] data = page.getPageData();
+        if (data.length != pageSize)
+            throw new IllegalArgumentException("page " + pid + " is " + data.length + " bytes, delta expects " + pageSize);
+        for (int r = 0; r < offsets.length; r++)
+            System.arraycopy(bytes[r], 0, data, offsets[r], bytes[r].length);
+        return toPage(data);
+    }
+
+    /* Builds a page of the logged class from patched page data. */
+    private Page toPage(byte[] data) throws IOException {
+        try {
+            Class<?> pageClass = Class.forName(pageClassName);
+            // a Page class may have more than one constructor (e.g. HeapPage can
+            // also be built from a ByteBuffer), so pick the (PageId, byte[]) one
+            for (Constructor<?> c : pageClass.getDeclaredConstructors()) {
+                Class<?>[] params = c.getParameterTypes();
+                if (params.length == 2 && params[1] == byte[].class)
+                    return (Page) c.newInstance(pid, data);
+            }
+            throw new IOException("no (PageId, byte[]) constructor in " + pageClassName);
+        } catch (ClassNotFoundException | InvocationTargetException | IllegalAccessException | InstantiationException e) {
+            throw new IOException("could not rebuild page " + pid + ": " + e);
+        }
+    }
+
+    /*
+     * delta is:
+     * page class name
+     * id class name
+     * id class bytes
+     * id class data
+     * page size
+     * number of ranges
+     * for each range: offset, length, old bytes, new bytes
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeUTF(pageClassName);
+        PageChange.writePageId(out, pid);
+        out.writeInt(pageSize);
+        out.writeInt(offsets.length);
+        for (int r = 0; r < offsets.length; r++) {
+            out.writeInt(offsets[r]);
+            out.writeInt(oldBytes[r].length);
+            out.write(oldBytes[r]);
+            out.write(newBytes[r]);
+        }
+    }
+
+    static PageDelta read(DataInput in) throws IOException {
+        String pageClassName = in.readUTF();
+        PageId pid = PageChange.readPageId(in);
+        int pageSize = in.readInt();
+        int n = in.readInt();
+        int[] offsets = new int[n];
+        byte[][] oldBytes = new byte[n][], newBytes = new byte[n][];
+        for (int r = 0; r < n; r++) {
+            offsets[r] = in.readInt();
+            int len = in.readInt();
+            oldBytes[r] = new byte[len];
+            newBytes[r] = new byte[len];
+            in.readFully(oldBytes[r]);
+            in.readFully(newBytes[r]);
+        }
+        return new PageDelta(pid, pageClassName, pageSize, offsets, oldBytes, newBytes);
+    }
+}
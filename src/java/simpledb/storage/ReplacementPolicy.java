@@ -0,0 +1,50 @@
+package simpledb.storage;
+
+import java.util.function.Predicate;
+
+/**
+ * ReplacementPolicy decides which resident page the BufferPool should give
+ * up when it needs room for another one.
+ * <p>
+ * The BufferPool owns the pages themselves; a policy only tracks PageIds and
+ * whatever bookkeeping it needs to rank them. The BufferPool reports every
+ * admission, hit and removal, and asks for a victim when the pool is full.
+ * Hits may be reported concurrently with the other calls, so implementations
+ * must be thread safe and should keep {@link #recordAccess} cheap.
+ *
+ * @see BufferPool
+ */
+public interface ReplacementPolicy {
+
+    /**
+     * Called when a page has just been read into the pool.
+     *
+     * @param pid the id of the newly resident page
+     */
+    void recordAdmit(PageId pid);
+
+    /**
+     * Called when a request is served by a page that is already resident.
+     *
+     * @param pid the id of the page that was hit
+     */
+    void recordAccess(PageId pid);
+
+    /**
+     * Called when a page leaves the pool, either because it was evicted or
+     * because it was discarded (e.g. by rollback or {@link BufferPool#removePage}).
+     *
+     * @param pid the id of the page that is no longer resident
+     */
+    void remove(PageId pid);
+
+    /**
+     * Pick the page that should be evicted next. The returned page stays
+     * tracked until the BufferPool calls {@link #remove}.
+     *
+     * @param evictable tells whether a resident page may be evicted right now
+     *                  (e.g. it is not dirty)
+     * @return the id of the victim, or null if no tracked page is evictable
+     */
+    PageId chooseVictim(Predicate<PageId> evictable);
+}
@@ -0,0 +1,87 @@
+package simpledb.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.NoSuchElementException;
+
+/**
+ * A SlotWrite records one change to a slot of a {@link SlottedPage}: the
+ * serialized tuple that was in the slot before and the one that is in it
+ * after, either of which is null for an empty slot. An insert is a write
+ * from null, a delete a write to null, and a B+ tree leaf that shifts a
+ * tuple to keep its slots sorted makes one write into the new slot and
+ * one out of the old slot.
+ * <p>
+ * Redo puts the after bytes into the slot and undo the before bytes, so
+ * replaying a SlotWrite does not depend on what else is on the page.
+ */
+public class SlotWrite {
+
+    private final int slot;
+    private final byte[] before;
+    private final byte[] after;
+
+    /**
+     * @param slot   the slot number
+     * @param before the serialized tuple the slot held, or null if it was empty
+     * @param after  the serialized tuple the slot holds now, or null if empty
+     */
+    public SlotWrite(int slot, byte[] before, byte[] after) {
+        this.slot = slot;
+        this.before = before;
+        this.after = after;
+    }
+
+    public int getSlot() {
+        return slot;
+    }
+
+    /**
+     * @return the serialized tuple the slot held before, or null
+     */
+    public byte[] getBefore() {
+        return before;
+    }
+
+    /**
+     * @return the serialized tuple the slot holds after, or null
+     */
+    public byte[] getAfter() {
+        return after;
+    }
+
+    /**
+     * Serializes the fields of a tuple the way pages store them in a slot.
+     */
+    public static byte[] encode(Tuple t) {
+        TupleDesc td = t.getTupleDesc();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(td.getSize());
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            for (int j = 0; j < td.numFields(); j++)
+                t.getField(j).serialize(dos);
+        } catch (IOException e) {
+            // this really shouldn't happen
+            throw new RuntimeException(e);
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * Parses a tuple written by {@link #encode}. The caller sets its RecordId.
+     */
+    public static Tuple decode(TupleDesc td, byte[] data) throws NoSuchElementException {
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        Tuple t = new Tuple(td);
+        try {
+            for (int j = 0; j < td.numFields(); j++)
+                t.setField(j, td.getFieldType(j).parse(dis));
+        } catch (java.text.ParseException e) {
+            throw new NoSuchElementException("parsing error!");
+        }
+        return t;
+    }
+}
@@ -0,0 +1,64 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The slot writes a {@link SlottedPage} has made since it was last logged.
+ * <p>
+ * Tracking stops (and {@link #drain} returns null, so the page is logged as
+ * a byte delta) when the page changes in a way that is not a slot write,
+ * when tuple logging is off, or when the writes add up to more bytes than
+ * the page itself, at which point a delta is smaller anyway. This also
+ * bounds the memory used by a page that is modified many times before it
+ * is logged. Not thread-safe; the owning page guards it.
+ */
+public class SlotWriteLog {
+
+    private final List<SlotWrite> writes = new ArrayList<>();
+    private int bytes = 0;
+    private boolean complete = true;
+
+    /**
+     * @return true if the next slot write should be added; callers check
+     *         this before encoding the tuples
+     */
+    public boolean tracking() {
+        if (complete && !Database.getLogFile().isTupleLogging())
+            untracked();
+        return complete;
+    }
+
+    public void add(SlotWrite w) {
+        if (!complete)
+            return;
+        writes.add(w);
+        bytes += (w.getBefore() == null ? 0 : w.getBefore().length)
+                + (w.getAfter() == null ? 0 : w.getAfter().length);
+        if (bytes > BufferPool.getPageSize())
+            untracked();
+    }
+
+    /**
+     * Records a change that slot writes do not describe.
+     */
+    public void untracked() {
+        complete = false;
+        writes.clear();
+        bytes = 0;
+    }
+
+    /**
+     * @return the writes since the last call, or null if they do not describe
+     *         every change since then; starts tracking again either way
+     */
+    public List<SlotWrite> drain() {
+        List<SlotWrite> drained = complete ? new ArrayList<>(writes) : null;
+        writes.clear();
+        bytes = 0;
+        complete = true;
+        return drained;
+    }
+}
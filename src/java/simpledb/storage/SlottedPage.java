@@ -0,0 +1,32 @@
+package simpledb.storage;
+
+import java.util.List;
+
+/**
+ * A page that keeps fixed-size tuples in numbered slots, such as a heap page
+ * or a B+ tree leaf. Besides its before-image, such a page remembers the
+ * slot writes made to it, so that the log can record "tuple t went into
+ * slot s of page p" instead of the changed bytes of the page.
+ *
+ * @see LogFile#setTupleLogging
+ */
+public interface SlottedPage extends Page {
+
+    /**
+     * Returns the slot writes made since the last call, in order, and forgets
+     * them. Returns null if the page was also changed in a way that slot
+     * writes do not describe (a parent or sibling pointer, for example); the
+     * caller must then log the change some other way.
+     */
+    List<SlotWrite> drainSlotWrites();
+
+    /**
+     * Puts a serialized tuple into a slot, or empties the slot if data is
+     * null. Used by recovery to replay slot writes; it is not itself
+     * remembered as a slot write.
+     *
+     * @param slot the slot number
+     * @param data the tuple as written by {@link SlotWrite#encode}, or null
+     */
+    void writeSlot(int slot, byte[] data);
+}
@@ -0,0 +1,103 @@
+package simpledb.storage;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * TupleChanges is the body of a TUPLE log record: the slot writes a
+ * transaction made to one {@link SlottedPage} since the page was last logged.
+ * Redo replays the writes in order and undo reverts them in reverse order, on
+ * whatever version of the page is on disk.
+ */
+class TupleChanges implements PageChange {
+
+    private final PageId pid;
+    private final List<SlotWrite> writes;
+
+    TupleChanges(PageId pid, List<SlotWrite> writes) {
+        this.pid = pid;
+        this.writes = writes;
+    }
+
+    public PageId getId() {
+        return pid;
+    }
+
+    /**
+     * @return the number of slot writes in this record
+     */
+    int size() {
+        return writes.size();
+    }
+
+    public Page redo(Page page) throws IOException {
+        SlottedPage p = slotted(page);
+        for (SlotWrite w : writes)
+            p.writeSlot(w.getSlot(), w.getAfter());
+        return p;
+    }
+
+    public Page undo(Page page) throws IOException {
+        SlottedPage p = slotted(page);
+        for (int i = writes.size() - 1; i >= 0; i--)
+            p.writeSlot(writes.get(i).getSlot(), writes.get(i).getBefore());
+        return p;
+    }
+
+    private SlottedPage slotted(Page page) throws IOException {
+        if (!(page instanceof SlottedPage))
+            throw new IOException("TUPLE record for page " + pid + ", which has no slots");
+        return (SlottedPage) page;
+    }
+
+    /*
+     * tuple changes are:
+     * page id (see PageChange.writePageId)
+     * number of slot writes
+     * for each write: slot, before length (-1 if empty), before bytes,
+     * after length (-1 if empty), after bytes
+     */
+    public void write(DataOutput out) throws IOException {
+        PageChange.writePageId(out, pid);
+        out.writeInt(writes.size());
+        for (SlotWrite w : writes) {
+            out.writeInt(w.getSlot());
+            writeBytes(out, w.getBefore());
+            writeBytes(out, w.getAfter());
+        }
+    }
+
+    static TupleChanges read(DataInput in) throws IOException {
+        PageId pid = PageChange.readPageId(in);
+        int n = in.readInt();
+        List<SlotWrite> writes = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            int slot = in.readInt();
+            byte[] before = readBytes(in);
+            byte[] after = readBytes(in);
+            writes.add(new SlotWrite(slot, before, after));
+        }
+        return new TupleChanges(pid, writes);
+    }
+
+    private static void writeBytes(DataOutput out, byte[] b) throws IOException {
+        if (b == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    private static byte[] readBytes(DataInput in) throws IOException {
+        int len = in.readInt();
+        if (len < 0)
+            return null;
+        byte[] b = new byte[len];
+        in.readFully(b);
+        return b;
+    }
+}
@@ -0,0 +1,40 @@
+package simpledb.transaction;
+
+/**
+ * How a {@link TxLockManager} keeps transactions waiting for page locks
+ * from deadlocking. The prevention schemes order transactions by age (see
+ * {@link TransactionId#isOlderThan}). A transaction retried with
+ * {@link Transaction#Transaction(Transaction)} gets a new id but keeps the
+ * age of its first attempt, so it cannot keep dying against the same older
+ * transactions: sooner or later it is the oldest.
+ *
+ * @see simpledb.storage.BufferPool
+ */
+public enum DeadlockPolicy {
+
+    /**
+     * Wait as long as it takes, and look for cycles in the waits-for graph;
+     * a cycle aborts its youngest transaction.
+     */
+    DETECT,
+
+    /**
+     * Abort a request that has not been granted within a second or so,
+     * whether or not it was part of a deadlock.
+     */
+    TIMEOUT,
+
+    /**
+     * An older transaction may wait for younger ones; a younger transaction
+     * that would wait for an older one is aborted ("dies") instead.
+     */
+    WAIT_DIE,
+
+    /**
+     * A younger transaction may wait for older ones; an older transaction
+     * that would wait for a younger one aborts ("wounds") the younger one
+     * and waits for its locks. A wounded transaction that is not waiting is
+     * aborted on its next lock request.
+     */
+    WOUND_WAIT
+}
@@ -0,0 +1,69 @@
+package simpledb.transaction;
+
+import simpledb.common.Permissions;
+
+/**
+ * The modes of a lock in the table / page / tuple hierarchy of
+ * {@link TxLockManager}. S and X lock a granule and everything below it;
+ * the intention modes IS and IX only announce S or X locks further down,
+ * and SIX is S on the granule plus IX for writes below it.
+ */
+public enum LockMode {
+    IS, IX, S, SIX, X;
+
+    // 兼容矩阵, 按声明顺序
+    private static final boolean[][] COMPATIBLE = {
+            //        IS     IX     S      SIX    X
+            /* IS  */ {true, true, true, true, false},
+            /* IX  */ {true, true, false, false, false},
+            /* S   */ {true, false, true, false, false},
+            /* SIX */ {true, false, false, false, false},
+            /* X   */ {false, false, false, false, false},
+    };
+
+    /**
+     * @return the mode of a page or tuple lock for perm, S or X
+     */
+    public static LockMode of(Permissions perm) {
+        return perm == Permissions.READ_WRITE ? X : S;
+    }
+
+    /**
+     * @return the intention mode to hold on the parent before locking a
+     *         child in this mode
+     */
+    public LockMode intention() {
+        return this == IS || this == S ? IS : IX;
+    }
+
+    /**
+     * @return true if another transaction may hold other while this is held
+     */
+    public boolean compatibleWith(LockMode other) {
+        return COMPATIBLE[ordinal()][other.ordinal()];
+    }
+
+    /**
+     * @return true if holding this lock grants everything other does
+     */
+    public boolean covers(LockMode other) {
+        return join(other) == this;
+    }
+
+    /**
+     * @return the weakest mode that covers both this and other
+     */
+    public LockMode join(LockMode other) {
+        if (this == other)
+            return this;
+        if (this == X || other == X)
+            return X;
+        if (this == SIX || other == SIX)
+            return SIX;
+        if (this == IS)
+            return other;
+        if (other == IS)
+            return this;
+        return SIX; // S和IX
+    }
+}
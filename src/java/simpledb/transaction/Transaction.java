@@ -17,6 +17,18 @@ public class Transaction {
         tid = new TransactionId();
     }
 
+    /**
+     * Creates a transaction that retries an aborted one. It has a new id but
+     * keeps the age of the first attempt, so under wait-die or wound-wait it
+     * gets older with every retry instead of dying against the same
+     * transactions again and again.
+     *
+     * @param aborted the attempt being retried
+     */
+    public Transaction(Transaction aborted) {
+        tid = new TransactionId(aborted.tid);
+    }
+
     /**
      * Start the transaction running
      */
@@ -58,12 +70,17 @@ public class Transaction {
                 Database.getLogFile().logAbort(tid); //does rollback too
             }
 
-            // Release locks and flush pages if needed
-            Database.getBufferPool().transactionComplete(tid, !abort); // release locks
+            // flush pages if needed
+            Database.getBufferPool().completePages(tid, !abort);
 
-            // write commit log record
-            if (!abort) {
-                Database.getLogFile().logCommit(tid);
+            // write commit log record; NO-FORCE 下页还在缓冲池里, 放锁之前 COMMIT 必须已经落盘
+            try {
+                if (!abort) {
+                    Database.getLogFile().logCommit(tid);
+                }
+            } finally {
+                // release locks
+                Database.getBufferPool().releaseLocks(tid);
             }
 
             //setting this here means we could possibly write multiple abort records -- OK?
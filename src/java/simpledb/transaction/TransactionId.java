@@ -12,15 +12,45 @@ public class TransactionId implements Serializable {
 
     static final AtomicLong counter = new AtomicLong(0);
     final long myid;
+    final long timestamp; // 第一次尝试的id, 重试沿用, 事务的年龄按它算
 
     public TransactionId() {
         myid = counter.getAndIncrement();
+        timestamp = myid;
+    }
+
+    /**
+     * Creates the id of a retry of an aborted transaction: a new id, but the
+     * timestamp of the first attempt, so the retry is as old as the
+     * transaction it restarts.
+     *
+     * @param first the id of an earlier attempt
+     */
+    public TransactionId(TransactionId first) {
+        myid = counter.getAndIncrement();
+        timestamp = first.timestamp;
     }
 
     public long getId() {
         return myid;
     }
 
+    /**
+     * @return the id of the first attempt of this transaction
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return true if this transaction is older than other: its first
+     *         attempt started earlier, or it is an earlier attempt of the
+     *         same transaction
+     */
+    public boolean isOlderThan(TransactionId other) {
+        return timestamp < other.timestamp || (timestamp == other.timestamp && myid < other.myid);
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (this == obj)
@@ -2,269 +2,723 @@ package simpledb.transaction;
 
 import simpledb.common.Permissions;
 import simpledb.storage.PageId;
-import simpledb.transaction.TransactionAbortedException;
-import simpledb.transaction.TransactionId;
+import simpledb.storage.RecordId;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Random;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Created by Administrator on 2020/5/1 0001.
+ * <p>
+ * Hierarchical locks for transactions, on tables, pages and tuples. A
+ * page or tuple is locked shared (READ_ONLY, {@link LockMode#S}) or
+ * exclusive (READ_WRITE, {@link LockMode#X}) after the matching intention
+ * lock (IS or IX) on the granules above it; a table can also be locked S,
+ * SIX or X as a whole, which covers all of its pages and tuples. Once a
+ * transaction has been granted escalationThreshold page and tuple locks on
+ * one table, they are escalated to an S lock on the table, or X if it has
+ * written to the table: the page and tuple locks the table lock covers are
+ * released, and the pages under it are no longer locked one by one; a scan
+ * of a big table thus holds a bounded number of locks.
+ * <p>
+ * Every locked granule has one {@link LockEntry}: the
+ * transactions holding the lock and a FIFO queue of the requests waiting
+ * for it, each with its own condition. A release grants the lock straight
+ * to the waiters at the head of the queue that are now compatible and wakes
+ * only those, so a waiter runs as soon as it owns the lock. A new request
+ * queues behind earlier waiters even if it is compatible, so writers do not
+ * starve; a transaction upgrading a lock it holds goes to the front.
+ * <p>
+ * Deadlocks are detected with a waits-for graph: a waiting transaction
+ * waits for the holders of incompatible locks and for the requests ahead of
+ * it in the queue. Whenever a transaction starts to wait, and again every
+ * DETECT_INTERVAL_MILLIS while it keeps waiting, the lock manager looks for
+ * a cycle through it and aborts the youngest transaction in the cycle (the
+ * one that started last, which has done the least work; see
+ * {@link TransactionId#isOlderThan}). Waits without a
+ * cycle never time out.
+ * <p>
+ * That is the {@link DeadlockPolicy#DETECT} policy. The lock manager can
+ * instead time out waits ({@link DeadlockPolicy#TIMEOUT}), or never let a
+ * cycle form by checking the age of the transactions on every edge added to
+ * the waits-for graph ({@link DeadlockPolicy#WAIT_DIE},
+ * {@link DeadlockPolicy#WOUND_WAIT}).
  */
 public class TxLockManager {
 
-    //    private TxLockManager instance;
+    static final long DETECT_INTERVAL_MILLIS = 500;
+
+    /** Page and tuple locks a transaction takes on one table before escalating to a table lock */
+    public static final int DEFAULT_ESCALATION_THRESHOLD = 1000;
+
+    // TIMEOUT策略: 超时时间, 加上一点随机, 免得死锁的两个事务一起放弃
     long txFinishTimeoutMills = 1000;
-    long waitTimeoutMills = 200;
     long randomDelayTime = 200;
-//    long start;
 
-    private ConcurrentHashMap<PageId, List<TransactionId>> page2TxReadLockMap;
-    private ConcurrentHashMap<PageId, List<TransactionId>> page2TxWriteLockMap;
+    private final DeadlockPolicy policy;
+    private volatile int escalationThreshold = DEFAULT_ESCALATION_THRESHOLD;
+    private final AtomicLong escalations = new AtomicLong();
 
-    private ConcurrentHashMap<TransactionId, List<PageId>> tx2PageReadLockMap;
-    private ConcurrentHashMap<TransactionId, List<PageId>> tx2PageWriteLockMap;
+    // 锁表: 表(TableKey), 页(PageId), 元组(RecordId)的锁都在这里
+    private final ConcurrentHashMap<Object, LockEntry> locks = new ConcurrentHashMap<>();
+    // 每个事务锁住的粒度, 释放的时候不用扫整张锁表; 表锁盖住以后写的页也记在这里(锁表里没有)
+    private final ConcurrentHashMap<TransactionId, Set<Object>> tx2Locks = new ConcurrentHashMap<>();
+    // 每个事务在每张表上的锁, 和它在这张表里锁了多少页和元组
+    private final ConcurrentHashMap<TransactionId, Map<Integer, TableLocks>> tx2Tables = new ConcurrentHashMap<>();
 
-    public ConcurrentHashMap<PageId, List<TransactionId>> getPage2TxReadLockMap() {
-        return page2TxReadLockMap;
-    }
+    // 等待图: 在等锁的事务 -> 它在等的事务. 可以拿着某页的latch再拿graphLock, 反过来不行
+    private final Object graphLock = new Object();
+    private final Map<TransactionId, Set<TransactionId>> waitsFor = new HashMap<>(); // protected by graphLock
+    private final Map<TransactionId, Waiter> waiting = new HashMap<>();              // protected by graphLock
 
-    public void setPage2TxReadLockMap(ConcurrentHashMap<PageId, List<TransactionId>> page2TxReadLockMap) {
-        this.page2TxReadLockMap = page2TxReadLockMap;
-    }
+    // 死锁统计, protected by graphLock
+    private long deadlocks = 0;
+    private final SortedMap<Integer, Long> cycleLengths = new TreeMap<>();
 
-    public ConcurrentHashMap<PageId, List<TransactionId>> getPage2TxWriteLockMap() {
-        return page2TxWriteLockMap;
-    }
+    // WOUND_WAIT: 被年长事务伤到的事务, 下次要锁(或者正在等锁)就中止; 只在graphLock里加
+    private final Set<TransactionId> wounded = ConcurrentHashMap.newKeySet();
+
+    /* The key of a table lock in the lock table. */
+    private static final class TableKey {
+        final int tableId;
 
-    public void setPage2TxWriteLockMap(ConcurrentHashMap<PageId, List<TransactionId>> page2TxWriteLockMap) {
-        this.page2TxWriteLockMap = page2TxWriteLockMap;
+        TableKey(int tableId) {
+            this.tableId = tableId;
+        }
+
+        public boolean equals(Object o) {
+            return o instanceof TableKey && ((TableKey) o).tableId == tableId;
+        }
+
+        public int hashCode() {
+            return Integer.hashCode(tableId);
+        }
+
+        public String toString() {
+            return "table " + tableId;
+        }
     }
 
-    public ConcurrentHashMap<TransactionId, List<PageId>> getTx2PageReadLockMap() {
-        return tx2PageReadLockMap;
+    /*
+     * What one transaction holds on one table: the table lock (a copy of its
+     * mode in the lock table, so that covered requests skip the lock table)
+     * and the number of page and tuple locks taken under it.
+     */
+    private static class TableLocks {
+        private LockMode mode = null;
+        final AtomicInteger children = new AtomicInteger();
+        volatile boolean wrote = false;
+
+        synchronized boolean covers(LockMode m) {
+            return mode != null && mode.covers(m);
+        }
+
+        synchronized void raise(LockMode m) {
+            mode = mode == null ? m : mode.join(m);
+        }
+
+        synchronized LockMode mode() {
+            return mode;
+        }
     }
 
-    public void setTx2PageReadLockMap(ConcurrentHashMap<TransactionId, List<PageId>> tx2PageReadLockMap) {
-        this.tx2PageReadLockMap = tx2PageReadLockMap;
+    /* The lock on one table, page or tuple; latch guards everything in it. */
+    private static class LockEntry {
+        final ReentrantLock latch = new ReentrantLock();
+        final Map<TransactionId, LockMode> holders = new HashMap<>();
+        final ArrayDeque<Waiter> waiters = new ArrayDeque<>();
+        boolean removed = false; // 空了, 已经从锁表里删掉, 要重新取
+
+        boolean holds(TransactionId tid, LockMode mode) {
+            LockMode held = holders.get(tid);
+            return held != null && held.covers(mode);
+        }
+
+        boolean compatible(TransactionId tid, LockMode mode) {
+            for (Map.Entry<TransactionId, LockMode> h : holders.entrySet()) {
+                if (!h.getKey().equals(tid) && !h.getValue().compatibleWith(mode))
+                    return false;
+            }
+            return true;
+        }
+
+        void grant(TransactionId tid, LockMode mode) {
+            holders.merge(tid, mode, LockMode::join);
+        }
+
+        /*
+         * Hand the lock to the waiters at the head of the queue, in order,
+         * while they are compatible; returns the ones granted.
+         */
+        List<Waiter> grantWaiters() {
+            List<Waiter> granted = new ArrayList<>();
+            while (!waiters.isEmpty()) {
+                Waiter w = waiters.peekFirst();
+                if (!compatible(w.tid, w.mode))
+                    break;
+                waiters.pollFirst();
+                grant(w.tid, w.mode);
+                w.granted = true;
+                w.ready.signal();
+                granted.add(w);
+            }
+            return granted;
+        }
+
+        boolean isFree() {
+            return holders.isEmpty() && waiters.isEmpty();
+        }
     }
 
-    public ConcurrentHashMap<TransactionId, List<PageId>> getTx2PageWriteLockMap() {
-        return tx2PageWriteLockMap;
+    /*
+     * A queued request. granted and aborted are set under the entry's latch,
+     * by whoever grants the lock or aborts the request;
+     * victim is set under graphLock, so a cycle is only broken once.
+     */
+    private static class Waiter {
+        final TransactionId tid;
+        final LockMode mode;
+        final Object key;
+        final LockEntry entry;
+        final Condition ready;
+        boolean granted = false;
+        boolean aborted = false;
+        boolean victim = false;
+
+        Waiter(TransactionId tid, LockMode mode, Object key, LockEntry entry) {
+            this.tid = tid;
+            this.mode = mode;
+            this.key = key;
+            this.entry = entry;
+            this.ready = entry.latch.newCondition();
+        }
     }
 
-    public void setTx2PageWriteLockMap(ConcurrentHashMap<TransactionId, List<PageId>> tx2PageWriteLockMap) {
-        this.tx2PageWriteLockMap = tx2PageWriteLockMap;
+    /**
+     * Creates a lock manager that detects deadlocks.
+     */
+    public TxLockManager() {
+        this(DeadlockPolicy.DETECT);
     }
 
+    /**
+     * Creates a lock manager that handles deadlocks with the given policy.
+     */
+    public TxLockManager(DeadlockPolicy policy) {
+        this.policy = policy;
+    }
 
-    public TxLockManager () {
-        page2TxReadLockMap = new ConcurrentHashMap<>();
-        page2TxWriteLockMap = new ConcurrentHashMap<>();
+    public DeadlockPolicy getPolicy() {
+        return policy;
+    }
 
-        tx2PageReadLockMap = new ConcurrentHashMap<>();
-        tx2PageWriteLockMap = new ConcurrentHashMap<>();
+    /**
+     * Sets how many page and tuple locks a transaction takes on one table
+     * before they are escalated to a table lock.
+     */
+    public void setEscalationThreshold(int threshold) {
+        this.escalationThreshold = threshold;
+    }
 
+    /**
+     * @return the number of lock escalations so far
+     */
+    public long getEscalations() {
+        return escalations.get();
     }
 
+    /**
+     * Locks pid for tid with perm, waiting for conflicting locks to be
+     * released, after an intention lock on its table. Returns right away if
+     * tid already holds a lock at least as strong on the page or the table.
+     *
+     * @throws TransactionAbortedException if the deadlock policy aborts tid
+     *                                     instead of letting it wait
+     */
+    public void acquireLock(TransactionId tid, PageId pid, Permissions perm) throws TransactionAbortedException {
+        LockMode mode = LockMode.of(perm);
+        TableLocks table = intend(tid, pid.getTableId(), mode);
+        if (table.covers(mode)) {
+            if (mode == LockMode.X)
+                record(tid, pid); // 表锁盖住了, 不进锁表, 但提交的时候要找得到这一页
+            return;
+        }
+        escalate(tid, pid.getTableId(), table, mode, lock(tid, pid, mode) ? 1 : 0);
+    }
 
-    // tid want lock pid with perm
-    public boolean acquireLock(TransactionId tid, PageId pid, Permissions perm, long startAt, int tryTimes) throws TransactionAbortedException {
-        try {
-            // if already has this lock
-            if (perm.equals(Permissions.READ_ONLY) && page2TxReadLockMap.get(pid) != null && page2TxReadLockMap.get(pid).contains(tid) ||
-                    perm.equals(Permissions.READ_WRITE) && page2TxWriteLockMap.get(pid) != null && page2TxWriteLockMap.get(pid).contains(tid) ||
-                    perm.equals(Permissions.READ_ONLY) && page2TxWriteLockMap.get(pid) != null && page2TxWriteLockMap.get(pid).contains(tid)) {
-                // already has READ or WRITE Lock
-                // get the lock and return
-//                System.out.println("tid = "+tid.getId()+" get "+perm+" Lock :"+pid.getPageNumber());
-                return true;
-            }
+    /**
+     * Locks one tuple for tid with perm, after intention locks on its page
+     * and table. Page locks taken through the BufferPool still guard the
+     * bytes of the page; tuple locks are for callers that lock rows.
+     *
+     * @throws TransactionAbortedException if the deadlock policy aborts tid
+     *                                     instead of letting it wait
+     */
+    public void acquireTupleLock(TransactionId tid, RecordId rid, Permissions perm) throws TransactionAbortedException {
+        LockMode mode = LockMode.of(perm);
+        PageId pid = rid.getPageId();
+        TableLocks table = intend(tid, pid.getTableId(), mode);
+        if (table.covers(mode))
+            return;
+        int granted = lock(tid, pid, mode.intention()) ? 1 : 0;
+        if (lock(tid, rid, mode))
+            granted++;
+        escalate(tid, pid.getTableId(), table, mode, granted);
+    }
 
-            // try get READ lock
-            if (perm.equals(Permissions.READ_ONLY)) {
-                // if a WRITE Lock exist, can't get read lock
-                if (page2TxWriteLockMap.get(pid) != null && !page2TxWriteLockMap.get(pid).isEmpty()) {
-//                    System.out.println("tid = "+tid.getId()+" try get pid = "+pid.getPageNumber()+" READ Lock." +" But some WRITE Lock at pid = "+pid.getPageNumber());
+    /**
+     * Locks a whole table for tid in the given mode: S or X to cover all of
+     * its pages and tuples, SIX to read all of it and write some, or an
+     * intention mode.
+     *
+     * @throws TransactionAbortedException if the deadlock policy aborts tid
+     *                                     instead of letting it wait
+     */
+    public void acquireTableLock(TransactionId tid, int tableId, LockMode mode) throws TransactionAbortedException {
+        TableLocks table = tableLocks(tid, tableId);
+        if (!table.covers(mode)) {
+            lock(tid, new TableKey(tableId), mode);
+            table.raise(mode);
+        }
+    }
 
-                    synchronized (pid) {
-                        waitOrAbort ( pid, tid, perm, startAt);
-                        while (!acquireLock(tid, pid, perm, startAt, tryTimes+1)) {
-                            waitOrAbort ( pid, tid, perm, startAt);
-                        }
-                    }
+    /**
+     * @return the mode of tid's lock on the table, or null
+     */
+    public LockMode getTableLock(TransactionId tid, int tableId) {
+        Map<Integer, TableLocks> tables = tx2Tables.get(tid);
+        TableLocks table = tables == null ? null : tables.get(tableId);
+        return table == null ? null : table.mode();
+    }
 
-//                    System.out.println("tid = "+tid.getId()+" get "+perm+" Lock :"+pid.getPageNumber());
-                    return true;
-                }
+    private TableLocks tableLocks(TransactionId tid, int tableId) {
+        return tx2Tables.computeIfAbsent(tid, k -> new ConcurrentHashMap<>())
+                .computeIfAbsent(tableId, k -> new TableLocks());
+    }
 
-                // No WRITE exist
-                // So don't care whether has another tid's READ Lock, just add a READ Lock
-                List<TransactionId> page2TxReadLockList = page2TxReadLockMap.get(pid);
-                addLockIntoPage2TxMap( page2TxReadLockList,  tid,  pid,  page2TxReadLockMap);
-                List<PageId> tx2PageReadLockList = tx2PageReadLockMap.get(tid);
-                addLockIntoTx2PageMap(tx2PageReadLockList,tid,pid,tx2PageReadLockMap);
+    /* Take the intention lock on the table before locking a page or tuple in mode. */
+    private TableLocks intend(TransactionId tid, int tableId, LockMode mode) throws TransactionAbortedException {
+        TableLocks table = tableLocks(tid, tableId);
+        LockMode intention = mode.intention();
+        if (!table.covers(intention)) {
+            lock(tid, new TableKey(tableId), intention);
+            table.raise(intention);
+        }
+        return table;
+    }
 
-                // get the lock
-//                System.out.println("tid = "+tid.getId()+" get "+perm+" Lock :"+pid.getPageNumber());
-                return true;
-            }
+    /*
+     * Count the page and tuple locks just granted to tid in mode (locks it
+     * already held are not counted again); past the threshold, lock the
+     * whole table instead, S if tid has only read it and X otherwise.
+     */
+    private void escalate(TransactionId tid, int tableId, TableLocks table, LockMode mode, int granted)
+            throws TransactionAbortedException {
+        if (mode == LockMode.X)
+            table.wrote = true;
+        if (table.children.addAndGet(granted) < escalationThreshold)
+            return;
+        LockMode whole = table.wrote ? LockMode.X : LockMode.S;
+        if (table.covers(whole))
+            return;
+        lock(tid, new TableKey(tableId), whole);
+        table.raise(whole);
+        escalations.incrementAndGet();
+        releaseCovered(tid, tableId, whole);
+    }
 
+    /*
+     * Release tid's page and tuple locks on the table that its table lock in
+     * mode covers: all of them under X, the read locks under S. Pages that
+     * were locked X stay in tx2Locks, without a lock, so that commit still
+     * finds them.
+     */
+    private void releaseCovered(TransactionId tid, int tableId, LockMode mode) {
+        Set<Object> held = tx2Locks.get(tid);
+        if (held == null)
+            return;
+        for (Object key : held) {
+            PageId pid = key instanceof RecordId ? ((RecordId) key).getPageId()
+                    : key instanceof PageId ? (PageId) key : null;
+            if (pid == null || pid.getTableId() != tableId)
+                continue;
+            LockMode released = release(tid, key, mode);
+            if (released != null && !(key instanceof PageId && released == LockMode.X))
+                held.remove(key);
+        }
+    }
 
-            // try get WRITE lock
-            if (perm.equals(Permissions.READ_WRITE)) {
-                List<TransactionId> page2TxWriteLockList = page2TxWriteLockMap.get(pid);
+    private boolean coveredByTable(TransactionId tid, int tableId, LockMode mode) {
+        Map<Integer, TableLocks> tables = tx2Tables.get(tid);
+        TableLocks table = tables == null ? null : tables.get(tableId);
+        return table != null && table.covers(mode);
+    }
 
-                // only self has pid's READ lock, no one has WRITE Lock
-                if (page2TxWriteLockMap.get(pid)==null ||
-                        (page2TxWriteLockMap.get(pid) != null && page2TxWriteLockMap.get(pid).isEmpty())) {
-                    if (page2TxReadLockMap.get(pid) != null && page2TxReadLockMap.get(pid).contains(tid) && page2TxReadLockMap.get(pid).size() == 1) {
-                        // remove READ Lock, add WRITE Lock
-                        page2TxReadLockMap.get(pid).remove(tid);
+    private void record(TransactionId tid, Object key) {
+        tx2Locks.computeIfAbsent(tid, k -> ConcurrentHashMap.newKeySet()).add(key);
+    }
 
-                        addLockIntoPage2TxMap( page2TxWriteLockList,  tid,  pid,  page2TxWriteLockMap);
+    /*
+     * Lock one granule in the lock table, waiting for incompatible locks to
+     * be released; a lock tid already holds is upgraded to the join of the
+     * two modes. Returns true if tid held no lock on the granule before.
+     */
+    private boolean lock(TransactionId tid, Object key, LockMode mode) throws TransactionAbortedException {
+        if (policy == DeadlockPolicy.WOUND_WAIT && wounded.contains(tid))
+            throw new TransactionAbortedException();
+        Waiter w = null;
+        boolean upgrade;
+        List<Waiter> wounds = Collections.emptyList();
+        while (true) {
+            LockEntry e = locks.computeIfAbsent(key, k -> new LockEntry());
+            e.latch.lock();
+            try {
+                if (e.removed)
+                    continue;
+                if (e.holds(tid, mode))
+                    return false;
+                LockMode held = e.holders.get(tid);
+                upgrade = held != null;
+                LockMode want = upgrade ? held.join(mode) : mode;
+                if (e.compatible(tid, want) && (upgrade || e.waiters.isEmpty())) {
+                    e.grant(tid, want);
+                    if (!e.waiters.isEmpty())
+                        wounds = updateWaitsFor(e, Collections.emptyList()); // 锁升级了, 等它的请求可能变多了
+                } else {
+                    w = new Waiter(tid, want, key, e);
+                    if (upgrade)
+                        e.waiters.addFirst(w); // 手里已经有锁, 排在后面的请求多半在等它
+                    else
+                        e.waiters.addLast(w);
+                    wounds = updateWaitsFor(e, Collections.emptyList());
+                }
+            } finally {
+                e.latch.unlock();
+            }
+            break;
+        }
+        abortAll(wounds);
+        if (w != null)
+            awaitGrant(w);
+        record(tid, key);
+        return !upgrade;
+    }
 
-//                        System.out.println("tid = "+tid.getId()+" get "+perm+" Lock :"+pid.getPageNumber());
-                        return true;
+    /*
+     * Wait until w is granted or aborted: by a deadlock found now and then,
+     * a timeout, or the prevention scheme. Called without any latch.
+     */
+    private void awaitGrant(Waiter w) throws TransactionAbortedException {
+        if (policy == DeadlockPolicy.DETECT)
+            breakDeadlock(w.tid);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(
+                txFinishTimeoutMills + (long) (Math.random() * randomDelayTime));
+        LockEntry e = w.entry;
+        List<Waiter> wounds = Collections.emptyList();
+        e.latch.lock();
+        try {
+            while (!w.granted && !w.aborted) {
+                if (policy == DeadlockPolicy.TIMEOUT) {
+                    long left = deadline - System.nanoTime();
+                    if (left <= 0)
+                        break;
+                    w.ready.awaitNanos(left);
+                } else if (policy != DeadlockPolicy.DETECT) {
+                    w.ready.await(); // 预防策略下等待图里不会有环
+                } else if (!w.ready.await(DETECT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS)) {
+                    // 等了一阵, 再查一遍(比如别的事务的等待在这期间连成了环)
+                    e.latch.unlock();
+                    try {
+                        breakDeadlock(w.tid);
+                    } finally {
+                        e.latch.lock();
                     }
                 }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            // 没拿到锁(被中止, 超时, 被中断, 或者线程被stop)就退出队列
+            if (!w.granted) {
+                e.waiters.remove(w);
+                List<Waiter> ended = new ArrayList<>(e.grantWaiters()); // 排在它后面的请求可能只是被它挡住了
+                ended.add(w);
+                wounds = updateWaitsFor(e, ended);
+                removeIfFree(w.key, e);
+            }
+            e.latch.unlock();
+        }
+        abortAll(wounds);
+        if (!w.granted)
+            throw new TransactionAbortedException();
+    }
 
-                // whatever another tid(not this tid) take Read or WRITE Lock for this pid, can't get pid WRITE lock
-                if (page2TxWriteLockMap.get(pid) != null && !page2TxWriteLockMap.get(pid).isEmpty() ||
-                        page2TxReadLockMap.get(pid) != null && !page2TxReadLockMap.get(pid).isEmpty()) {
-//                    System.out.println("tid = "+tid.getId()+" try get pid = "+pid.getPageNumber()+" WRITE Lock."+" But some other Lock at pid = "+pid.getPageNumber());
-
-                    synchronized (pid) {
-                        waitOrAbort ( pid, tid, perm, startAt);
-                        while (!acquireLock(tid, pid, perm, startAt, tryTimes+1)) {
-                            waitOrAbort ( pid, tid, perm, startAt);
+    /*
+     * Recompute the waits-for edges of e's waiters, and drop the requests in
+     * ended, which are no longer waiting. Called with e.latch held.
+     *
+     * Under WAIT_DIE a waiter with an edge to an older transaction is
+     * aborted here. Under WOUND_WAIT the younger transactions a waiter has
+     * edges to are wounded; the ones waiting on other pages are returned,
+     * for the caller to abort with abortAll once it has let go of e.latch.
+     */
+    private List<Waiter> updateWaitsFor(LockEntry e, List<Waiter> ended) {
+        List<Waiter> wounds = new ArrayList<>();
+        synchronized (graphLock) {
+            for (Waiter w : ended) {
+                waitsFor.remove(w.tid);
+                waiting.remove(w.tid, w);
+            }
+            Set<TransactionId> ahead = new HashSet<>();
+            for (Waiter w : e.waiters) {
+                Set<TransactionId> edges = new HashSet<>(ahead);
+                for (Map.Entry<TransactionId, LockMode> h : e.holders.entrySet()) {
+                    if (!h.getValue().compatibleWith(w.mode))
+                        edges.add(h.getKey());
+                }
+                edges.remove(w.tid);
+                waitsFor.put(w.tid, edges);
+                waiting.put(w.tid, w);
+                if (policy == DeadlockPolicy.WAIT_DIE) {
+                    for (TransactionId t : edges) {
+                        if (t.isOlderThan(w.tid))
+                            abort(w); // 年轻的不等年长的, 直接死
+                    }
+                } else if (policy == DeadlockPolicy.WOUND_WAIT) {
+                    if (wounded.contains(w.tid))
+                        abort(w); // 排队之前或者排队的时候被伤到了
+                    for (TransactionId t : edges) {
+                        if (w.tid.isOlderThan(t) && wounded.add(t)) {
+                            Waiter v = waiting.get(t);
+                            if (v == null)
+                                continue; // 没在等锁, 下次要锁的时候中止
+                            if (v.entry == e)
+                                abort(v);
+                            else
+                                wounds.add(v);
                         }
                     }
-
-//                    System.out.println("tid = "+tid.getId()+" get "+perm+" Lock :"+pid.getPageNumber());
-                    return true;
                 }
-
-                // get the lock as no other WRITE or READ Lock
-                addLockIntoPage2TxMap( page2TxWriteLockList,  tid,  pid,  page2TxWriteLockMap);
-                List<PageId> tx2PageWriteLockList= tx2PageReadLockMap.get(tid);
-                addLockIntoTx2PageMap(tx2PageWriteLockList,tid,pid,tx2PageWriteLockMap);
-//                System.out.println("tid = "+tid.getId()+" get "+perm+" Lock :"+pid.getPageNumber());
-                return true;
+                if (!w.aborted)
+                    ahead.add(w.tid); // 要退出的请求挡不住后面的
             }
-
-            // should not at here
-//            System.out.println("acquire Lock exception! ");
-            return false;
-        } catch (Exception e) {
-//            System.out.println("*****"+" tid: "+tid.getId()+" Acquire "+pid.getPageNumber()+"'s "+perm+ " Lock failed "+tryTimes+" times, TX aborted!*****");
-            throw new TransactionAbortedException();
         }
+        return wounds;
+    }
 
+    /* Abort w if it is still waiting. Called with w.entry.latch held. */
+    private static void abort(Waiter w) {
+        if (!w.granted && !w.aborted) {
+            w.aborted = true;
+            w.ready.signal();
+        }
     }
 
-    public void waitOrAbort (PageId pid, TransactionId tid, Permissions perm, long startAt) throws TransactionAbortedException, InterruptedException{
-        pid.wait(this.waitTimeoutMills + (long)(Math.random() * randomDelayTime));
-        if (System.currentTimeMillis() - startAt > this.txFinishTimeoutMills) {
-            System.out.println("isFirstLock: "+ isFirstLock(pid,  tid,  perm, startAt ));
-//            System.out.println(" ***** TX aborted as Time Out! *****");
-            if (!isFirstLock( pid,  tid,  perm, startAt )) {
-                throw new TransactionAbortedException();
+    /* Abort waiters on other pages; called without any latch. */
+    private static void abortAll(List<Waiter> ws) {
+        for (Waiter w : ws) {
+            w.entry.latch.lock();
+            try {
+                abort(w);
+            } finally {
+                w.entry.latch.unlock();
             }
-
         }
     }
 
-    private boolean isFirstLock(PageId pid, TransactionId tid, Permissions perm, long startAt) {
-        return  (tx2PageReadLockMap.get(pid)!=null
-                && tx2PageReadLockMap.get(pid).size()>=1
-                && tx2PageReadLockMap.get(pid).get(0).equals(tid))
-                ||
-                (tx2PageWriteLockMap.get(pid)!=null
-                        && tx2PageWriteLockMap.get(pid).size()>=1
-                        && tx2PageWriteLockMap.get(pid).get(0).equals(tid));
+    /* If tid is waiting in a cycle, abort the youngest transaction in it. Called without any latch. */
+    private void breakDeadlock(TransactionId tid) {
+        Waiter victim;
+        synchronized (graphLock) {
+            List<TransactionId> cycle = findCycle(tid);
+            if (cycle == null)
+                return;
+            TransactionId youngest = tid;
+            for (TransactionId t : cycle) {
+                if (youngest.isOlderThan(t))
+                    youngest = t;
+            }
+            victim = waiting.get(youngest);
+            victim.victim = true;
+            deadlocks++;
+            cycleLengths.merge(cycle.size(), 1L, Long::sum);
+        }
+        abortAll(Collections.singletonList(victim));
     }
 
-
-    public void addLockIntoPage2TxMap(List<TransactionId> targetList, TransactionId tid, PageId pid, ConcurrentHashMap<PageId, List<TransactionId>> targetMap) {
-        if (targetList != null) {
-            targetList.add(tid);
-        } else {
-            targetList = new ArrayList<>();
-            targetList.add(tid);
-            targetMap.put(pid, targetList);
+    /*
+     * Depth-first search for a path of waits from start back to itself;
+     * returns the transactions on it, or null. Victims already picked are
+     * on their way out and do not count. Called with graphLock held.
+     */
+    private List<TransactionId> findCycle(TransactionId start) {
+        if (!waitsFor.containsKey(start) || waiting.get(start).victim)
+            return null;
+        List<TransactionId> path = new ArrayList<>();
+        Deque<Iterator<TransactionId>> stack = new ArrayDeque<>();
+        Set<TransactionId> visited = new HashSet<>();
+        path.add(start);
+        stack.push(waitsFor.get(start).iterator());
+        visited.add(start);
+        while (!stack.isEmpty()) {
+            Iterator<TransactionId> it = stack.peek();
+            if (!it.hasNext()) {
+                stack.pop();
+                path.remove(path.size() - 1);
+                continue;
+            }
+            TransactionId next = it.next();
+            if (next.equals(start))
+                return path;
+            Set<TransactionId> edges = waitsFor.get(next);
+            if (edges == null || waiting.get(next).victim || !visited.add(next))
+                continue;
+            path.add(next);
+            stack.push(edges.iterator());
         }
+        return null;
     }
 
-    public void addLockIntoTx2PageMap(List<PageId> targetList, TransactionId tid, PageId pid, ConcurrentHashMap<TransactionId, List<PageId>> targetMap) {
-        if (targetList != null) {
-            targetList.add(pid);
-        } else {
-            targetList = new ArrayList<>();
-            targetList.add(pid);
-            targetMap.put(tid, targetList);
+    /**
+     * @return the number of deadlocks broken so far
+     */
+    public long getDeadlocks() {
+        synchronized (graphLock) {
+            return deadlocks;
         }
     }
 
-    public void releaseLock(TransactionId tid, PageId pid) throws Exception {
-
-        // if don't hold lock, throw exception
-        if (!hasHoldsLock(tid, pid)) {
-//            System.out.println("release Lock失败, tid = " + tid.getId() + "未持有 pid = " + pid.getPageNumber() + "的锁");
-            throw new TransactionAbortedException();
+    /**
+     * @return for each length of the waits-for cycles found so far (the
+     *         number of transactions in it), how many there were
+     */
+    public SortedMap<Integer, Long> getCycleLengths() {
+        synchronized (graphLock) {
+            return new TreeMap<>(cycleLengths);
         }
+    }
 
-        // release READ Lock
-        if (page2TxReadLockMap.get(pid)!=null && page2TxReadLockMap.get(pid).contains(tid)) {
-            page2TxReadLockMap.get(pid).remove(tid);
+    /* Called with e.latch held. */
+    private void removeIfFree(Object key, LockEntry e) {
+        if (e.isFree()) {
+            e.removed = true;
+            locks.remove(key, e);
         }
+    }
 
-        // release WRITE Lock
-        if (page2TxWriteLockMap.get(pid)!=null && page2TxWriteLockMap.get(pid).contains(tid)) {
-            page2TxWriteLockMap.get(pid).remove(tid);
-        }
+    /**
+     * Releases tid's lock on pid and hands it to the waiters that can have
+     * it now.
+     *
+     * A page covered by a lock on its table has no lock of its own to
+     * release; the table lock stays.
+     *
+     * @throws TransactionAbortedException if tid does not hold a lock on pid
+     */
+    public void releaseLock(TransactionId tid, PageId pid) throws TransactionAbortedException {
+        if (!release(tid, pid) && !coveredByTable(tid, pid.getTableId(), LockMode.S))
+            throw new TransactionAbortedException();
+        Set<Object> held = tx2Locks.get(tid);
+        if (held != null)
+            held.remove(pid);
+    }
 
-//        System.out.println("release Lock, tid = " + tid.getId() + "释放 pid = " + pid.getPageNumber() + "的锁,开启Notify");
-        synchronized (pid) {
-            pid.notifyAll();// TODO !!!!!
+    /**
+     * Releases every lock tid holds, table locks last.
+     */
+    public void releaseLock(TransactionId tid) {
+        tx2Tables.remove(tid);
+        Set<Object> held = tx2Locks.remove(tid);
+        if (held != null) {
+            List<Object> tables = new ArrayList<>();
+            for (Object key : held) {
+                if (key instanceof TableKey)
+                    tables.add(key);
+                else
+                    release(tid, key);
+            }
+            for (Object key : tables)
+                release(tid, key);
         }
+        wounded.remove(tid); // 锁都放了, 不会再有人伤它
+    }
 
+    private boolean release(TransactionId tid, Object key) {
+        return release(tid, key, LockMode.X) != null;
     }
 
-    public void releaseLock(TransactionId tid) throws Exception{
-//        List<PageId> pageIds = tx2PageReadLockMap.get(tid);
-//        if(pageIds != null)
-//            for (PageId pid : pageIds){
-//                releaseLock(tid,pid);
-//                System.out.println("事务"+tid.myid +"释放了页面"+pid.getPageNumber()+"的读锁");
-//            }
-//
-//        pageIds = tx2PageWriteLockMap.get(tid);
-//        if(pageIds != null)
-//            for (PageId pid : pageIds){
-//                releaseLock(tid,pid);
-//                System.out.println("事务"+tid.myid +"释放了页面"+pid.getPageNumber()+"的写锁");
-//            }
-        for (PageId pid: page2TxWriteLockMap.keySet()) {
-            if(page2TxWriteLockMap.get(pid).contains(tid))
-                releaseLock(tid,pid);
-        }
-        for (PageId pid: page2TxReadLockMap.keySet()) {
-            if(page2TxReadLockMap.get(pid).contains(tid))
-                releaseLock(tid,pid);
+    /* Release tid's lock on key if covering covers it; returns the mode released, or null. */
+    private LockMode release(TransactionId tid, Object key, LockMode covering) {
+        LockEntry e = locks.get(key);
+        if (e == null)
+            return null;
+        LockMode held;
+        List<Waiter> wounds = Collections.emptyList();
+        e.latch.lock();
+        try {
+            held = e.holders.get(tid);
+            if (held != null && !covering.covers(held))
+                held = null;
+            if (held != null) {
+                e.holders.remove(tid);
+                wounds = updateWaitsFor(e, e.grantWaiters());
+                removeIfFree(key, e);
+            }
+        } finally {
+            e.latch.unlock();
         }
+        abortAll(wounds);
+        return held;
     }
 
+    /**
+     * @return the pages tid holds a lock on, including the pages it locked
+     *         for writing under an X lock on their table; the set is a
+     *         snapshot, and costs time in the number of tid's locks only
+     */
+    public Set<PageId> getLockedPages(TransactionId tid) {
+        Set<Object> held = tx2Locks.get(tid);
+        if (held == null)
+            return Collections.emptySet();
+        Set<PageId> pages = new HashSet<>();
+        for (Object key : held) {
+            if (key instanceof PageId)
+                pages.add((PageId) key);
+        }
+        return pages;
+    }
 
-
+    /**
+     * @return true if tid holds at least a shared lock on p, on the page
+     *         itself or on its table
+     */
     public boolean hasHoldsLock(TransactionId tid, PageId p) {
-        return page2TxWriteLockMap.get(p)!=null && page2TxWriteLockMap.get(p).contains(tid)
-                || page2TxReadLockMap.get(p)!=null && page2TxReadLockMap.get(p).contains(tid);
+        if (coveredByTable(tid, p.getTableId(), LockMode.S))
+            return true;
+        LockEntry e = locks.get(p);
+        if (e == null)
+            return false;
+        e.latch.lock();
+        try {
+            return e.holds(tid, LockMode.S);
+        } finally {
+            e.latch.unlock();
+        }
     }
-
 }
-
-
@@ -6,6 +6,8 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.After;
 import org.junit.Before;
@@ -55,6 +57,27 @@ public class BufferPoolWriteTest extends TestUtil.CreateHeapFile {
     	}
     }
     
+    // class whose page reads wait until the test lets them go
+    static class SlowHeapFile extends HeapFile {
+        final CountDownLatch reading = new CountDownLatch(1);
+        final CountDownLatch go = new CountDownLatch(1);
+
+        public SlowHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override
+        public Page readPage(PageId pid) {
+            reading.countDown();
+            try {
+                go.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            return super.readPage(pid);
+        }
+    }
+
     /**
      * Set up initial resources for each unit test.
      */
@@ -88,6 +111,45 @@ public class BufferPoolWriteTest extends TestUtil.CreateHeapFile {
         }
     }
     
+    /**
+     * Unit test for BufferPool.getPage(): a miss reads the page without
+     * holding the pool, so a miss on another page is not stuck behind it,
+     * and a second miss on the same page waits for the first read.
+     */
+    @Test public void missReadsOutsidePoolLock() throws Exception {
+        File f = File.createTempFile("slow", ".dat");
+        f.deleteOnExit();
+        Utility.createEmptyHeapFile(f.getAbsolutePath(), 2);
+        SlowHeapFile slow = new SlowHeapFile(f, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(slow, SystemTestUtil.getUUID());
+        HeapPageId slowPid = new HeapPageId(slow.getId(), 0);
+
+        Page[] got = new Page[2];
+        Thread[] readers = new Thread[2];
+        for (int i = 0; i < 2; i++) {
+            int n = i;
+            readers[i] = new Thread(() -> {
+                try {
+                    got[n] = Database.getBufferPool().getPage(tid, slowPid, Permissions.READ_ONLY);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            readers[i].start();
+        }
+        assertTrue(slow.reading.await(1, TimeUnit.SECONDS));
+
+        // 另一页的读不用等那次慢读
+        Database.getBufferPool().getPage(tid, new HeapPageId(empty.getId(), 0), Permissions.READ_ONLY);
+        assertTrue(readers[0].isAlive() && readers[1].isAlive());
+
+        slow.go.countDown();
+        for (Thread t : readers)
+            t.join(1000);
+        assertNotNull(got[0]);
+        assertSame(got[0], got[1]);
+    }
+
     /**
      * Unit test for BufferPool.deleteTuple()
      */
@@ -0,0 +1,109 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.execution.SeqScan;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+public class BufferRingTest extends SimpleDbTestBase {
+
+    private static final int POOL_PAGES = 40;
+    private static final int HOT_PAGES = 10;
+    private static final int SCAN_PAGES = 100;
+
+    /** Counts readPage() calls, i.e. buffer pool misses. */
+    private static class CountingHeapFile extends HeapFile {
+        int reads = 0;
+
+        CountingHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override
+        public Page readPage(PageId pid) {
+            reads++;
+            return super.readPage(pid);
+        }
+    }
+
+    private CountingHeapFile hot;
+    private HeapFile big;
+
+    @Before public void setUp() throws Exception {
+        Database.resetBufferPool(POOL_PAGES);
+        File f = SystemTestUtil.createRandomHeapFileUnopened(1, 992 * HOT_PAGES, 1000, null, new ArrayList<>());
+        hot = new CountingHeapFile(f, Utility.getTupleDesc(1));
+        Database.getCatalog().addTable(hot, SystemTestUtil.getUUID());
+        big = SystemTestUtil.createRandomHeapFile(1, 992 * SCAN_PAGES, null, null);
+    }
+
+    private void touchHotPages(TransactionId tid) throws Exception {
+        for (int i = 0; i < HOT_PAGES; i++)
+            Database.getBufferPool().getPage(tid, new HeapPageId(hot.getId(), i), Permissions.READ_ONLY);
+    }
+
+    /**
+     * A SeqScan over a table larger than the pool reads through a ring and
+     * leaves the pages of other tables cached.
+     */
+    @Test public void scanKeepsHotPages() throws Exception {
+        TransactionId tid = new TransactionId();
+        touchHotPages(tid);
+        assertEquals(HOT_PAGES, hot.reads);
+
+        SeqScan scan = new SeqScan(tid, big.getId(), "big");
+        scan.open();
+        int count = 0;
+        while (scan.hasNext()) {
+            scan.next();
+            count++;
+        }
+        scan.close();
+        assertEquals(992 * SCAN_PAGES, count);
+
+        touchHotPages(tid);
+        assertEquals(HOT_PAGES, hot.reads);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * A ring never grows past its size, even when the pool has room.
+     */
+    @Test public void ringRecyclesItsFrames() throws Exception {
+        TransactionId tid = new TransactionId();
+        BufferRing ring = new BufferRing(4);
+        BufferPool pool = Database.getBufferPool();
+        for (int i = 0; i < 8; i++)
+            pool.getPage(tid, new HeapPageId(hot.getId(), i), Permissions.READ_ONLY, ring);
+        assertEquals(8, hot.reads);
+
+        // pages 4..7 are still in the ring, pages 0..3 were recycled
+        for (int i = 4; i < 8; i++)
+            pool.getPage(tid, new HeapPageId(hot.getId(), i), Permissions.READ_ONLY);
+        assertEquals(8, hot.reads);
+        pool.getPage(tid, new HeapPageId(hot.getId(), 0), Permissions.READ_ONLY);
+        assertEquals(9, hot.reads);
+        pool.transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferRingTest.class);
+    }
+}
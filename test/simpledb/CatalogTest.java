@@ -2,6 +2,8 @@ package simpledb;
 
 import static org.junit.Assert.assertEquals;
 
+import java.io.File;
+import java.io.FileWriter;
 import java.util.NoSuchElementException;
 import java.util.Random;
 
@@ -33,6 +35,24 @@ public class CatalogTest extends SimpleDbTestBase {
         Database.getCatalog().addTable(new SkeletonFile(id2, Utility.getTupleDesc(2)), name);
     }
 
+    /**
+     * Unit test for Catalog.loadSchema(): a table option other than mmap is
+     * rejected, not ignored.
+     */
+    @Test public void loadSchemaRejectsUnknownOption() throws Exception {
+        File schema = File.createTempFile("catalog", ".txt");
+        schema.deleteOnExit();
+        try (FileWriter w = new FileWriter(schema)) {
+            w.write("t (a int, b int) mmpa\n");
+        }
+        try {
+            Database.getCatalog().loadSchema(schema.getAbsolutePath());
+            Assert.fail("Should reject unknown table option");
+        } catch (IllegalArgumentException e) {
+            // Expected to get here
+        }
+    }
+
     /**
      * Unit test for Catalog.getTupleDesc()
      */
@@ -97,6 +117,31 @@ public class CatalogTest extends SimpleDbTestBase {
     	assertEquals(f, Database.getCatalog().getDatabaseFile(id2));
     }
 
+    /**
+     * Check that replacing or clearing tables closes their files
+     */
+    @Test public void closesDroppedFiles() {
+        int[] closed = new int[1];
+        class ClosingFile extends SkeletonFile {
+            ClosingFile(int tableid) {
+                super(tableid, Utility.getTupleDesc(2));
+            }
+
+            public void close() {
+                closed[0]++;
+            }
+        }
+        int id3 = r.nextInt();
+        DbFile f = new ClosingFile(id3);
+        Database.getCatalog().addTable(f, SystemTestUtil.getUUID());
+        Database.getCatalog().addTable(f, SystemTestUtil.getUUID());
+        assertEquals(0, closed[0]); // 同一个文件换个名字, 还在用
+        Database.getCatalog().addTable(new ClosingFile(id3), SystemTestUtil.getUUID());
+        assertEquals(1, closed[0]);
+        Database.getCatalog().clear();
+        assertEquals(2, closed[0]);
+    }
+
     /**
      * JUnit suite target
      */
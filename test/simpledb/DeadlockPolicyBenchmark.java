@@ -0,0 +1,180 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.execution.Delete;
+import simpledb.execution.Insert;
+import simpledb.execution.Query;
+import simpledb.execution.SeqScan;
+import simpledb.storage.BufferPool;
+import simpledb.storage.ClockReplacementPolicy;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.IntField;
+import simpledb.storage.PageId;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleIterator;
+import simpledb.transaction.DeadlockPolicy;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares the deadlock policies of the lock manager on two concurrent
+ * workloads:
+ * <ul>
+ * <li>counter: the TransactionTest workload. Every transaction reads the
+ * one tuple of a table, then deletes it and inserts it back incremented, so
+ * all of them upgrade a shared lock on the same page.</li>
+ * <li>crossed: the DeadlockTest workload. Every transaction takes shared
+ * locks on two random pages of a small table, in random order, and then
+ * upgrades both.</li>
+ * </ul>
+ * Each thread runs transactions back to back for a while, retrying aborted
+ * ones with {@link Transaction#Transaction(Transaction)}, so a retry keeps
+ * the age of its first attempt, as it would in a real application. For
+ * each policy the benchmark reports committed transactions per second and
+ * the share of attempts aborted.
+ * Run with
+ * <pre>
+ *     java -cp bin/src:bin/test simpledb.DeadlockPolicyBenchmark [threads] [seconds]
+ * </pre>
+ */
+public class DeadlockPolicyBenchmark {
+
+    private static final int CROSSED_PAGES = 4;
+
+    private static class Result {
+        final AtomicLong commits = new AtomicLong();
+        final AtomicLong aborts = new AtomicLong();
+        long millis;
+    }
+
+    private interface Workload {
+        /* Run one transaction's work; it is committed or aborted by the caller. */
+        void run(Transaction tr, Random rand) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        System.out.println(threads + " threads, " + seconds + " s per run");
+        for (DeadlockPolicy policy : DeadlockPolicy.values()) {
+            Database.reset();
+            Database.resetBufferPool(new BufferPool(BufferPool.DEFAULT_PAGES,
+                    new ClockReplacementPolicy(BufferPool.DEFAULT_PAGES), policy));
+            HeapFile counter = createTable(1);
+            insert(counter, 0);
+            report(policy, "counter", run(threads, seconds, (tr, rand) -> increment(tr, counter)));
+
+            HeapFile crossed = createTable(CROSSED_PAGES);
+            report(policy, "crossed", run(threads, seconds, (tr, rand) -> lockTwoPages(tr, crossed, rand)));
+        }
+        System.exit(0); // 被超时中止的请求可能还有线程挂着
+    }
+
+    private static void report(DeadlockPolicy policy, String workload, Result r) {
+        long commits = r.commits.get();
+        long aborts = r.aborts.get();
+        System.out.printf("%-10s %-7s %8.1f commits/s, abort rate %.3f%n", policy, workload,
+                commits * 1000.0 / r.millis, (double) aborts / Math.max(1, commits + aborts));
+    }
+
+    private static Result run(int threads, int seconds, Workload workload) throws InterruptedException {
+        Result r = new Result();
+        long deadline = System.currentTimeMillis() + seconds * 1000L;
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            Random rand = new Random(6830 + i);
+            workers[i] = new Thread(() -> {
+                Transaction retry = null;
+                while (System.currentTimeMillis() < deadline) {
+                    Transaction tr = retry == null ? new Transaction() : new Transaction(retry);
+                    try {
+                        tr.start();
+                        workload.run(tr, rand);
+                        tr.commit();
+                        r.commits.incrementAndGet();
+                        retry = null;
+                    } catch (TransactionAbortedException e) {
+                        r.aborts.incrementAndGet();
+                        retry = tr;
+                        try {
+                            tr.transactionComplete(true);
+                        } catch (Exception ex) {
+                            throw new RuntimeException(ex);
+                        }
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+        }
+        long start = System.currentTimeMillis();
+        for (Thread t : workers)
+            t.start();
+        for (Thread t : workers)
+            t.join();
+        r.millis = System.currentTimeMillis() - start;
+        return r;
+    }
+
+    /* The transaction of TransactionTest: read the counter, delete it, insert it plus one. */
+    private static void increment(Transaction tr, HeapFile table) throws Exception {
+        Query q1 = new Query(new SeqScan(tr.getId(), table.getId(), ""), tr.getId());
+        q1.start();
+        int i = ((IntField) q1.next().getField(0)).getValue();
+        q1.close();
+        Thread.sleep(1);
+
+        Query q2 = new Query(new Delete(tr.getId(), new SeqScan(tr.getId(), table.getId(), "")), tr.getId());
+        q2.start();
+        q2.next();
+        q2.close();
+
+        Tuple t = new Tuple(table.getTupleDesc());
+        t.setField(0, new IntField(i + 1));
+        TupleIterator ti = new TupleIterator(t.getTupleDesc(), Collections.singletonList(t));
+        Query q3 = new Query(new Insert(tr.getId(), ti, table.getId()), tr.getId());
+        q3.start();
+        q3.next();
+        q3.close();
+    }
+
+    /* Read two random pages in random order, then write both. */
+    private static void lockTwoPages(Transaction tr, HeapFile table, Random rand) throws Exception {
+        int a = rand.nextInt(CROSSED_PAGES);
+        int b = (a + 1 + rand.nextInt(CROSSED_PAGES - 1)) % CROSSED_PAGES;
+        PageId pa = new HeapPageId(table.getId(), a);
+        PageId pb = new HeapPageId(table.getId(), b);
+        BufferPool bp = Database.getBufferPool();
+        bp.getPage(tr.getId(), pa, Permissions.READ_ONLY);
+        bp.getPage(tr.getId(), pb, Permissions.READ_ONLY);
+        Thread.sleep(1);
+        bp.getPage(tr.getId(), pa, Permissions.READ_WRITE);
+        bp.getPage(tr.getId(), pb, Permissions.READ_WRITE);
+    }
+
+    private static HeapFile createTable(int pages) throws Exception {
+        File f = File.createTempFile("deadlock", ".dat");
+        f.deleteOnExit();
+        HeapFile hf = Utility.createEmptyHeapFile(f.getAbsolutePath(), 1);
+        for (int i = 1; i < pages; i++)
+            hf.writePage(new HeapPage(new HeapPageId(hf.getId(), i), HeapPage.createEmptyPageData()));
+        return hf;
+    }
+
+    private static void insert(HeapFile table, int value) throws Exception {
+        Transaction tr = new Transaction();
+        tr.start();
+        Database.getBufferPool().insertTuple(tr.getId(), table.getId(), Utility.getHeapTuple(value));
+        tr.commit();
+    }
+}
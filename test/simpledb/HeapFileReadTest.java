@@ -81,6 +81,106 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         assertFalse(page.isSlotUsed(20));
     }
 
+    /**
+     * Unit test for HeapFile.readPage() in memory-mapped mode, including a
+     * page appended after the file was first mapped.
+     */
+    @Test
+    public void readPageMemoryMapped() throws Exception {
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        byte[] expected = hf.readPage(pid).getPageData();
+
+        hf.setMemoryMapped(true);
+        assertTrue(hf.isMemoryMapped());
+        HeapPage page = (HeapPage) hf.readPage(pid);
+        assertArrayEquals(expected, page.getPageData());
+        assertEquals(484, page.getNumUnusedSlots());
+
+        // grow the file; the next read past the old mapping must remap
+        HeapPageId pid1 = new HeapPageId(hf.getId(), 1);
+        HeapPage appended = new HeapPage(pid1, HeapPage.createEmptyPageData());
+        appended.insertTuple(page.iterator().next());
+        hf.writePage(appended);
+        assertEquals(2, hf.numPages());
+        assertEquals(503, ((HeapPage) hf.readPage(pid1)).getNumUnusedSlots());
+    }
+
+    /**
+     * Unit test for HeapFile.readPage() on a table whose file is missing:
+     * the read fails instead of creating an empty file.
+     */
+    @Test
+    public void readPageMissingFile() throws Exception {
+        java.io.File missing = java.io.File.createTempFile("missing", ".dat");
+        assertTrue(missing.delete());
+        HeapFile gone = new HeapFile(missing, td);
+        Database.getCatalog().addTable(gone, SystemTestUtil.getUUID());
+        try {
+            gone.readPage(new HeapPageId(gone.getId(), 0));
+            fail("read a table whose file is missing");
+        } catch (RuntimeException e) {
+            // expected
+        }
+        assertFalse(missing.exists());
+    }
+
+    /**
+     * Unit test for DbFileChannel.read() into a buffer that does not start
+     * at position 0: the bytes still come from the given file position.
+     */
+    @Test
+    public void channelReadAtBufferPosition() throws Exception {
+        byte[] page = hf.readPage(new HeapPageId(hf.getId(), 0)).getPageData();
+        DbFileChannel channel = new DbFileChannel(hf.getFile());
+        java.nio.ByteBuffer dst = java.nio.ByteBuffer.allocate(20);
+        dst.position(4);
+        assertEquals(16, channel.read(dst, 8));
+        channel.close();
+        assertArrayEquals(Arrays.copyOfRange(page, 8, 24), Arrays.copyOfRange(dst.array(), 4, 20));
+    }
+
+    /**
+     * Unit test for HeapFile.readPages()
+     */
+    @Test
+    public void readPages() throws Exception {
+        HeapFile threePageFile = SystemTestUtil.createRandomHeapFile(2, 1100, null, null);
+        List<PageId> pids = new ArrayList<>();
+        for (int i = 0; i < 5; i++)
+            pids.add(new HeapPageId(threePageFile.getId(), i + 1));
+        List<Page> pages = threePageFile.readPages(pids);
+        assertEquals(2, pages.size());
+        for (int i = 0; i < 2; i++) {
+            assertEquals(pids.get(i), pages.get(i).getId());
+            assertArrayEquals(threePageFile.readPage(pids.get(i)).getPageData(), pages.get(i).getPageData());
+        }
+        assertTrue(threePageFile.readPages(pids.subList(2, 5)).isEmpty());
+    }
+
+    /**
+     * Pages read ahead by the BufferPool are counted as hits when a scan
+     * asks for them.
+     */
+    @Test
+    public void prefetchHits() throws Exception {
+        HeapFile threePageFile = SystemTestUtil.createRandomHeapFile(2, 1100, null, null);
+        BufferPool pool = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        pool.prefetch(threePageFile.getId(), 1, 2).get();
+        assertEquals(2, pool.getPrefetchedPages());
+
+        DbFileIterator it = threePageFile.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        assertEquals(1100, count);
+        assertEquals(2, pool.getPrefetchHits());
+        assertEquals(0, pool.getWastedPrefetches());
+    }
+
     @Test
     public void testIteratorBasic() throws Exception {
         HeapFile smallFile = SystemTestUtil.createRandomHeapFile(2, 3, null,
@@ -10,9 +10,13 @@ import simpledb.common.Database;
 import simpledb.common.Utility;
 import simpledb.storage.*;
 import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.LockMode;
 import simpledb.transaction.TransactionId;
 
+import java.io.File;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
     private TransactionId tid;
@@ -90,6 +94,75 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         it.close();
     }
 
+    /**
+     * Unit test for the free-space map used by HeapFile.insertTuple(): a slot
+     * freed on an early page is reused instead of growing the file, and the
+     * map is kept in a sidecar file next to the table.
+     */
+    @Test public void insertReusesFreedSlot() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 3, null, null);
+        assertEquals(3, hf.numPages());
+        BufferPool pool = Database.getBufferPool();
+
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        Tuple victim = it.next();
+        it.close();
+        pool.deleteTuple(tid, victim);
+        pool.insertTuple(tid, hf.getId(), Utility.getHeapTuple(7, 2));
+        assertEquals(3, hf.numPages());
+
+        // every page is full again, so this one goes to a new page
+        pool.insertTuple(tid, hf.getId(), Utility.getHeapTuple(8, 2));
+        assertEquals(4, hf.numPages());
+        assertTrue(new File(hf.getFile().getPath() + ".fsm").exists());
+
+        // a fresh HeapFile on the same file finds the new page through the map
+        HeapFile reopened = new HeapFile(hf.getFile(), hf.getTupleDesc());
+        List<Page> pages = reopened.insertTuple(tid, Utility.getHeapTuple(9, 2));
+        assertEquals(3, pages.get(0).getId().getPageNumber());
+        assertEquals(4, hf.numPages());
+    }
+
+    /**
+     * Unit test for HeapFile.bulkLoad(): tuples go to fresh pages at the end
+     * of the file, and aborting the load leaves those pages empty.
+     */
+    @Test public void bulkLoad() throws Exception {
+        List<Tuple> tuples = new ArrayList<>();
+        for (int i = 0; i < 504 * 2 + 10; ++i)
+            tuples.add(Utility.getHeapTuple(i, 2));
+        TupleIterator child = new TupleIterator(empty.getTupleDesc(), tuples);
+        child.open();
+        assertEquals(tuples.size(), empty.bulkLoad(tid, child));
+        child.close();
+        assertEquals(LockMode.X, Database.getBufferPool().txLockManager.getTableLock(tid, empty.getId()));
+        // page 0 of the empty file stays empty, the load goes after it
+        assertEquals(4, empty.numPages());
+        assertEquals(tuples.size(), countTuples(empty, tid));
+        Database.getBufferPool().transactionComplete(tid);
+
+        TransactionId aborted = new TransactionId();
+        child.open();
+        empty.bulkLoad(aborted, child);
+        child.close();
+        assertEquals(7, empty.numPages());
+        Database.getBufferPool().transactionComplete(aborted, false);
+        assertEquals(tuples.size(), countTuples(empty, tid));
+    }
+
+    private static int countTuples(HeapFile hf, TransactionId tid) throws Exception {
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        return count;
+    }
+
     /**
      * JUnit suite target
      */
@@ -13,8 +13,11 @@ import java.util.*;
 
 import org.junit.Before;
 import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import junit.framework.JUnit4TestAdapter;
 
@@ -123,6 +126,38 @@ public class HeapPageReadTest extends SimpleDbTestBase {
             assertFalse(page.isSlotUsed(i));
     }
 
+    /**
+     * Unit test for HeapPage.getTuple()
+     */
+    @Test public void getTuple() throws Exception {
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+        Tuple tup = page.getTuple(7);
+        assertEquals(EXAMPLE_VALUES[7][0], ((IntField) tup.getField(0)).getValue());
+        assertEquals(EXAMPLE_VALUES[7][1], ((IntField) tup.getField(1)).getValue());
+        assertEquals(7, tup.getRecordId().getTupleNumber());
+        assertSame(tup, page.getTuple(7));
+        assertNull(page.getTuple(20));
+
+        // a page that was only read serializes back to the same bytes
+        assertArrayEquals(EXAMPLE_DATA, page.getPageData());
+    }
+
+    /**
+     * Unit test for HeapPage: the page copies its bytes, so changing the
+     * caller's array afterwards does not change tuples not yet decoded.
+     */
+    @Test public void ownsItsBytes() throws Exception {
+        byte[] data = EXAMPLE_DATA.clone();
+        HeapPage page = new HeapPage(pid, data);
+        Arrays.fill(data, (byte) 0);
+
+        assertEquals(484, page.getNumUnusedSlots());
+        Tuple tup = page.getTuple(12);
+        assertEquals(EXAMPLE_VALUES[12][0], ((IntField) tup.getField(0)).getValue());
+        assertEquals(EXAMPLE_VALUES[12][1], ((IntField) tup.getField(1)).getValue());
+        assertArrayEquals(EXAMPLE_DATA, page.getPageData());
+    }
+
     /**
      * JUnit suite target
      */
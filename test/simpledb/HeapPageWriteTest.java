@@ -2,9 +2,11 @@ package simpledb;
 
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 
 import junit.framework.JUnit4TestAdapter;
 
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -14,6 +16,7 @@ import simpledb.common.DbException;
 import simpledb.common.Utility;
 import simpledb.storage.HeapPage;
 import simpledb.storage.HeapPageId;
+import simpledb.storage.SlotWrite;
 import simpledb.storage.Tuple;
 import simpledb.systemtest.SimpleDbTestBase;
 import simpledb.systemtest.SystemTestUtil;
@@ -32,6 +35,13 @@ public class HeapPageWriteTest extends SimpleDbTestBase {
         this.pid = new HeapPageId(-1, -1);
         Database.getCatalog().addTable(new SkeletonFile(-1, Utility.getTupleDesc(2)), SystemTestUtil.getUUID());
     }
+
+    /**
+     * Turn tuple logging back off, even if a test that turned it on failed.
+     */
+    @After public void resetTupleLogging() {
+        Database.getLogFile().setTupleLogging(false);
+    }
     
     /**
      * Unit test for HeapPage.isDirty()
@@ -49,6 +59,25 @@ public class HeapPageWriteTest extends SimpleDbTestBase {
         assertFalse(dirtier != null);
     }
 
+    /**
+     * Unit test for HeapPage.getBeforeImage(): the image taken on the first
+     * change survives later changes, and setBeforeImage() moves it forward.
+     */
+    @Test public void beforeImage() throws Exception {
+        TransactionId tid = new TransactionId();
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        assertArrayEquals(HeapPageReadTest.EXAMPLE_DATA, page.getBeforeImage().getPageData());
+
+        page.insertTuple(Utility.getHeapTuple(1, 2));
+        page.markDirty(true, tid);
+        page.insertTuple(Utility.getHeapTuple(2, 2));
+        assertArrayEquals(HeapPageReadTest.EXAMPLE_DATA, page.getBeforeImage().getPageData());
+        assertEquals(484, page.getBeforeImage().getNumUnusedSlots());
+
+        page.setBeforeImage();
+        assertArrayEquals(page.getPageData(), page.getBeforeImage().getPageData());
+    }
+
     /**
      * Unit test for HeapPage.addTuple()
      */
@@ -131,6 +160,39 @@ public class HeapPageWriteTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Unit test for HeapPage.drainSlotWrites() and writeSlot(): replaying the
+     * slot writes on the old page gives the new page, and replaying them
+     * backwards gives the old page again.
+     */
+    @Test public void slotWrites() throws Exception {
+        Database.getLogFile().setTupleLogging(true);
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        Tuple first = page.iterator().next();
+        page.deleteTuple(first);
+        page.insertTuple(Utility.getHeapTuple(7, 2));
+        page.insertTuple(Utility.getHeapTuple(8, 2));
+
+        List<SlotWrite> writes = page.drainSlotWrites();
+        assertEquals(3, writes.size());
+        assertNull(writes.get(0).getAfter());
+        assertNull(writes.get(1).getBefore());
+        assertEquals(0, page.drainSlotWrites().size());
+
+        HeapPage replay = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        for (SlotWrite w : writes)
+            replay.writeSlot(w.getSlot(), w.getAfter());
+        assertArrayEquals(page.getPageData(), replay.getPageData());
+        for (int i = writes.size() - 1; i >= 0; i--)
+            replay.writeSlot(writes.get(i).getSlot(), writes.get(i).getBefore());
+        assertArrayEquals(HeapPageReadTest.EXAMPLE_DATA, replay.getPageData());
+
+        // without tuple logging the page gives no slot writes
+        Database.getLogFile().setTupleLogging(false);
+        page.insertTuple(Utility.getHeapTuple(9, 2));
+        assertNull(page.drainSlotWrites());
+    }
+
     /**
      * JUnit suite target
      */
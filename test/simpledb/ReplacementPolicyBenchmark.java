@@ -0,0 +1,99 @@
+package simpledb;
+
+import simpledb.storage.ClockReplacementPolicy;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.LruKReplacementPolicy;
+import simpledb.storage.PageId;
+import simpledb.storage.ReplacementPolicy;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.function.IntFunction;
+
+/**
+ * Compares the hit ratio of the BufferPool replacement policies on a mixed
+ * workload: OLTP point lookups that mostly hit a small hot set (think B-tree
+ * internal pages and hot rows), interleaved with full scans of a table that is
+ * larger than the pool.
+ * <p>
+ * The policies are driven directly with the same page reference string, so
+ * the numbers do not depend on disk speed. Run with
+ * <pre>
+ *     java -cp bin/src:bin/test simpledb.ReplacementPolicyBenchmark [poolPages]
+ * </pre>
+ */
+public class ReplacementPolicyBenchmark {
+
+    private static final int LOOKUP_TABLE = 1;
+    private static final int SCAN_TABLE = 2;
+
+    private static final int LOOKUP_TABLE_PAGES = 20000;
+    private static final int LOOKUPS = 200000;
+    private static final int LOOKUPS_BETWEEN_SCANS = 5000;
+    private static final double HOT_FRACTION = 0.9;
+
+    private static class Result {
+        long lookupHits, lookups, hits, refs;
+    }
+
+    public static void main(String[] args) {
+        int poolPages = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        int hotPages = poolPages * 3 / 5;
+        int scanPages = poolPages * 2;
+
+        System.out.println("pool pages " + poolPages + ", hot pages " + hotPages
+                + ", scan pages " + scanPages + " every " + LOOKUPS_BETWEEN_SCANS + " lookups");
+        report("CLOCK", run(ClockReplacementPolicy::new, poolPages, hotPages, scanPages));
+        report("LRU-2", run(LruKReplacementPolicy::new, poolPages, hotPages, scanPages));
+    }
+
+    private static void report(String name, Result r) {
+        System.out.printf("%-6s point-lookup hit ratio %.3f, overall hit ratio %.3f%n", name,
+                (double) r.lookupHits / r.lookups, (double) r.hits / r.refs);
+    }
+
+    private static Result run(IntFunction<ReplacementPolicy> factory, int poolPages, int hotPages, int scanPages) {
+        ReplacementPolicy policy = factory.apply(poolPages);
+        Set<PageId> resident = new HashSet<>();
+        Random rand = new Random(6830);
+        Result r = new Result();
+
+        for (int i = 0; i < LOOKUPS; i++) {
+            int pgno = rand.nextDouble() < HOT_FRACTION
+                    ? rand.nextInt(hotPages)
+                    : hotPages + rand.nextInt(LOOKUP_TABLE_PAGES - hotPages);
+            boolean hit = reference(policy, resident, poolPages, new HeapPageId(LOOKUP_TABLE, pgno));
+            r.lookups++;
+            r.refs++;
+            if (hit) {
+                r.lookupHits++;
+                r.hits++;
+            }
+            if (i % LOOKUPS_BETWEEN_SCANS == LOOKUPS_BETWEEN_SCANS - 1) {
+                for (int s = 0; s < scanPages; s++) {
+                    r.refs++;
+                    if (reference(policy, resident, poolPages, new HeapPageId(SCAN_TABLE, s)))
+                        r.hits++;
+                }
+            }
+        }
+        return r;
+    }
+
+    /* Same bookkeeping as BufferPool.getPage, minus the I/O. */
+    private static boolean reference(ReplacementPolicy policy, Set<PageId> resident, int poolPages, PageId pid) {
+        if (resident.contains(pid)) {
+            policy.recordAccess(pid);
+            return true;
+        }
+        if (resident.size() >= poolPages) {
+            PageId victim = policy.chooseVictim(p -> true);
+            resident.remove(victim);
+            policy.remove(victim);
+        }
+        resident.add(pid);
+        policy.recordAdmit(pid);
+        return false;
+    }
+}
@@ -0,0 +1,125 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.storage.ClockReplacementPolicy;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.LruKReplacementPolicy;
+import simpledb.storage.PageId;
+import simpledb.storage.ReplacementPolicy;
+import simpledb.systemtest.SimpleDbTestBase;
+
+import static org.junit.Assert.*;
+
+public class ReplacementPolicyTest extends SimpleDbTestBase {
+
+    private static PageId pid(int pgno) {
+        return new HeapPageId(1, pgno);
+    }
+
+    /**
+     * A page that is hit again gets a second chance; a cold one is evicted.
+     */
+    @Test public void clockSecondChance() {
+        ReplacementPolicy policy = new ClockReplacementPolicy(3);
+        policy.recordAdmit(pid(0));
+        policy.recordAdmit(pid(1));
+        policy.recordAdmit(pid(2));
+
+        // first sweep clears every bit and stops back at frame 0
+        assertEquals(pid(0), policy.chooseVictim(p -> true));
+        policy.remove(pid(0));
+        policy.recordAdmit(pid(3));
+
+        // page 1 is referenced again, so page 2 goes next
+        policy.recordAccess(pid(1));
+        assertEquals(pid(2), policy.chooseVictim(p -> true));
+    }
+
+    /**
+     * Pages that are not evictable (e.g. dirty) are skipped.
+     */
+    @Test public void clockSkipsUnevictable() {
+        ReplacementPolicy policy = new ClockReplacementPolicy(2);
+        policy.recordAdmit(pid(0));
+        policy.recordAdmit(pid(1));
+        assertEquals(pid(1), policy.chooseVictim(p -> !p.equals(pid(0))));
+        assertNull(policy.chooseVictim(p -> false));
+    }
+
+    /**
+     * Removed frames are reused and never chosen again.
+     */
+    @Test public void clockRemoveFreesFrame() {
+        ReplacementPolicy policy = new ClockReplacementPolicy(1);
+        policy.recordAdmit(pid(0));
+        policy.remove(pid(0));
+        assertNull(policy.chooseVictim(p -> true));
+        policy.recordAdmit(pid(1));
+        assertEquals(pid(1), policy.chooseVictim(p -> true));
+    }
+
+    /**
+     * Pages referenced only once (e.g. by a scan) are evicted before pages
+     * that were referenced twice, even if the hot pages are older.
+     */
+    @Test public void lruKScanResistance() {
+        ReplacementPolicy policy = new LruKReplacementPolicy(4, 2, 0, 100);
+        policy.recordAdmit(pid(0));
+        policy.recordAdmit(pid(1));
+        policy.recordAccess(pid(0));
+        policy.recordAccess(pid(1));
+
+        policy.recordAdmit(pid(10));
+        policy.recordAdmit(pid(11));
+        assertEquals(pid(10), policy.chooseVictim(p -> true));
+        policy.remove(pid(10));
+        policy.recordAdmit(pid(12));
+        assertEquals(pid(11), policy.chooseVictim(p -> true));
+        policy.remove(pid(11));
+        policy.recordAdmit(pid(13));
+        assertEquals(pid(12), policy.chooseVictim(p -> true));
+    }
+
+    /**
+     * A hot page that was evicted keeps its history for a while, so it is
+     * still preferred over once-referenced pages when it comes back.
+     */
+    @Test public void lruKRetainedHistory() {
+        ReplacementPolicy policy = new LruKReplacementPolicy(2, 2, 0, 100);
+        policy.recordAdmit(pid(0));
+        policy.recordAccess(pid(0));
+        policy.remove(pid(0));
+
+        policy.recordAdmit(pid(1));
+        policy.recordAdmit(pid(0));
+        assertEquals(pid(1), policy.chooseVictim(p -> true));
+    }
+
+    /**
+     * References inside the correlated reference period count once, and a
+     * page still inside that period is only evicted as a last resort.
+     */
+    @Test public void lruKCorrelatedReferences() {
+        ReplacementPolicy policy = new LruKReplacementPolicy(4, 2, 3, 100);
+        policy.recordAdmit(pid(0));
+        policy.recordAdmit(pid(1));
+        policy.recordAdmit(pid(2));
+        policy.recordAccess(pid(0)); // correlated, still referenced only once
+        policy.recordAdmit(pid(3));
+        policy.recordAccess(pid(0)); // correlated again
+
+        // page 0 has the oldest history but is still in its correlated period
+        assertEquals(pid(1), policy.chooseVictim(p -> true));
+        assertEquals(pid(0), policy.chooseVictim(p -> p.equals(pid(0))));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReplacementPolicyTest.class);
+    }
+}
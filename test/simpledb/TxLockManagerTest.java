@@ -0,0 +1,456 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.common.Permissions;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.PageId;
+import simpledb.storage.RecordId;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.DeadlockPolicy;
+import simpledb.transaction.LockMode;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+import simpledb.transaction.TxLockManager;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import static org.junit.Assert.*;
+
+public class TxLockManagerTest extends SimpleDbTestBase {
+
+    /** Time to let a request reach the wait queue, in ms */
+    private static final int SETTLE = 50;
+
+    private TxLockManager locks;
+    private PageId pid;
+    private TransactionId tid1, tid2, tid3;
+
+    /* Requests a lock in its own thread and remembers when it got it. */
+    private class Requester extends Thread {
+        final TransactionId tid;
+        final PageId pid;
+        final Permissions perm;
+        volatile long grantedAt = -1;
+        volatile boolean aborted = false;
+
+        Requester(TransactionId tid, Permissions perm) {
+            this(tid, TxLockManagerTest.this.pid, perm);
+        }
+
+        Requester(TransactionId tid, PageId pid, Permissions perm) {
+            this.tid = tid;
+            this.pid = pid;
+            this.perm = perm;
+            setDaemon(true);
+            start();
+            try {
+                Thread.sleep(SETTLE);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        public void run() {
+            try {
+                locks.acquireLock(tid, pid, perm);
+                grantedAt = System.nanoTime();
+            } catch (TransactionAbortedException e) {
+                aborted = true;
+            }
+        }
+
+        boolean granted() throws InterruptedException {
+            join(SETTLE);
+            return grantedAt != -1;
+        }
+    }
+
+    @Before public void setUp() {
+        locks = new TxLockManager();
+        pid = new HeapPageId(1, 0);
+        tid1 = new TransactionId();
+        tid2 = new TransactionId();
+        tid3 = new TransactionId();
+    }
+
+    /**
+     * Unit test for TxLockManager: waiters are granted the lock in the order
+     * they asked for it, and a reader does not get ahead of a waiting writer.
+     */
+    @Test public void fifoHandoff() throws Exception {
+        locks.acquireLock(tid1, pid, Permissions.READ_WRITE);
+        Requester reader = new Requester(tid2, Permissions.READ_ONLY);
+        Requester writer = new Requester(tid3, Permissions.READ_WRITE);
+        assertFalse(reader.granted());
+
+        locks.releaseLock(tid1);
+        assertTrue(reader.granted());
+        assertFalse(writer.granted());
+
+        // 有写请求在排队, 后来的读请求不能插队
+        Requester late = new Requester(tid1, Permissions.READ_ONLY);
+        locks.releaseLock(tid2);
+        assertTrue(writer.granted());
+        assertFalse(late.granted());
+
+        locks.releaseLock(tid3);
+        assertTrue(late.granted());
+        assertFalse(reader.aborted || writer.aborted || late.aborted);
+    }
+
+    /**
+     * Unit test for TxLockManager: a release wakes the waiter right away
+     * instead of leaving it to notice on its own.
+     */
+    @Test public void releaseWakesWaiter() throws Exception {
+        locks.acquireLock(tid1, pid, Permissions.READ_WRITE);
+        Requester waiter = new Requester(tid2, Permissions.READ_WRITE);
+
+        long releasedAt = System.nanoTime();
+        locks.releaseLock(tid1, pid);
+        waiter.join(1000);
+        assertTrue(waiter.grantedAt != -1);
+        assertTrue((waiter.grantedAt - releasedAt) / 1000000 < 50);
+        assertTrue(locks.hasHoldsLock(tid2, pid));
+    }
+
+    /**
+     * Unit test for TxLockManager: upgrading a shared lock goes ahead of
+     * other waiters, which are blocked by the shared lock anyway.
+     */
+    @Test public void upgradeGoesFirst() throws Exception {
+        locks.acquireLock(tid1, pid, Permissions.READ_ONLY);
+        locks.acquireLock(tid2, pid, Permissions.READ_ONLY);
+        Requester writer = new Requester(tid3, Permissions.READ_WRITE);
+        Requester upgrade = new Requester(tid1, Permissions.READ_WRITE);
+        assertFalse(upgrade.granted());
+
+        locks.releaseLock(tid2, pid);
+        assertTrue(upgrade.granted());
+        assertFalse(writer.granted());
+
+        locks.releaseLock(tid1);
+        assertTrue(writer.granted());
+    }
+
+    /**
+     * Unit test for TxLockManager: each transaction's lock set holds exactly
+     * the pages it locked, and is emptied by releasing its locks.
+     */
+    @Test public void lockedPages() throws Exception {
+        PageId pid2 = new HeapPageId(1, 1);
+        locks.acquireLock(tid1, pid, Permissions.READ_ONLY);
+        locks.acquireLock(tid1, pid2, Permissions.READ_WRITE);
+        locks.acquireLock(tid2, pid, Permissions.READ_ONLY);
+        assertEquals(new HashSet<>(Arrays.asList(pid, pid2)), locks.getLockedPages(tid1));
+        assertEquals(Collections.singleton(pid), locks.getLockedPages(tid2));
+
+        locks.releaseLock(tid1, pid);
+        assertEquals(Collections.singleton(pid2), locks.getLockedPages(tid1));
+        locks.releaseLock(tid1);
+        assertTrue(locks.getLockedPages(tid1).isEmpty());
+        assertFalse(locks.hasHoldsLock(tid1, pid2));
+        assertTrue(locks.hasHoldsLock(tid2, pid));
+    }
+
+    /**
+     * Unit test for TxLockManager: two transactions waiting for each other
+     * are a deadlock, and the younger one is aborted right away.
+     */
+    @Test public void deadlockAbortsYoungest() throws Exception {
+        PageId pid2 = new HeapPageId(1, 1);
+        locks.acquireLock(tid1, pid, Permissions.READ_WRITE);
+        locks.acquireLock(tid2, pid2, Permissions.READ_WRITE);
+        Requester older = new Requester(tid1, pid2, Permissions.READ_WRITE);
+        Requester younger = new Requester(tid2, pid, Permissions.READ_WRITE);
+
+        younger.join(SETTLE);
+        assertTrue(younger.aborted);
+        assertFalse(older.granted());
+
+        locks.releaseLock(tid2);
+        assertTrue(older.granted());
+        assertEquals(1, locks.getDeadlocks());
+        assertEquals(Long.valueOf(1), locks.getCycleLengths().get(2));
+    }
+
+    /**
+     * Unit test for TxLockManager: a long wait that is not a deadlock is
+     * not aborted.
+     */
+    @Test public void longWaitIsNotAborted() throws Exception {
+        locks.acquireLock(tid1, pid, Permissions.READ_WRITE);
+        Requester waiter = new Requester(tid2, Permissions.READ_ONLY);
+        Thread.sleep(1200); // 比以前的超时(1s加随机)还久
+        assertFalse(waiter.aborted);
+
+        locks.releaseLock(tid1);
+        assertTrue(waiter.granted());
+        assertEquals(0, locks.getDeadlocks());
+    }
+
+    /**
+     * Unit test for TxLockManager: under wait-die an older transaction waits
+     * for a younger one, and a younger one aborts instead of waiting.
+     */
+    @Test public void waitDie() throws Exception {
+        locks = new TxLockManager(DeadlockPolicy.WAIT_DIE);
+        locks.acquireLock(tid2, pid, Permissions.READ_WRITE);
+        Requester older = new Requester(tid1, Permissions.READ_ONLY);
+        Requester younger = new Requester(tid3, Permissions.READ_ONLY);
+
+        younger.join(SETTLE);
+        assertTrue(younger.aborted);
+        assertFalse(older.granted());
+
+        locks.releaseLock(tid2);
+        assertTrue(older.granted());
+        assertFalse(older.aborted);
+    }
+
+    /**
+     * Unit test for TxLockManager: under wait-die a retried transaction keeps
+     * the age of its first attempt, so it waits for transactions that
+     * started after the first attempt instead of dying again.
+     */
+    @Test public void waitDieRetryKeepsAge() throws Exception {
+        locks = new TxLockManager(DeadlockPolicy.WAIT_DIE);
+        TransactionId retry = new TransactionId(tid1);
+        assertTrue(retry.isOlderThan(tid2));
+        assertTrue(tid1.isOlderThan(retry));
+
+        locks.acquireLock(tid2, pid, Permissions.READ_WRITE);
+        Requester waiter = new Requester(retry, Permissions.READ_ONLY);
+        assertFalse(waiter.granted());
+        assertFalse(waiter.aborted);
+        locks.releaseLock(tid2);
+        assertTrue(waiter.granted());
+    }
+
+    /**
+     * Unit test for TxLockManager: under wound-wait a younger transaction
+     * waits for an older one, and an older one wounds the younger holder,
+     * which is aborted even though it is waiting for another page.
+     */
+    @Test public void woundWait() throws Exception {
+        PageId pid2 = new HeapPageId(1, 1);
+        locks = new TxLockManager(DeadlockPolicy.WOUND_WAIT);
+        locks.acquireLock(tid1, pid2, Permissions.READ_WRITE);
+        locks.acquireLock(tid2, pid, Permissions.READ_WRITE);
+        Requester younger = new Requester(tid2, pid2, Permissions.READ_ONLY);
+        assertFalse(younger.granted());
+        assertFalse(younger.aborted);
+
+        // tid1再等tid2就成环了, tid2被伤, 在pid2上的等待中止
+        Requester older = new Requester(tid1, Permissions.READ_ONLY);
+        younger.join(SETTLE);
+        assertTrue(younger.aborted);
+        assertFalse(older.granted());
+
+        locks.releaseLock(tid2);
+        assertTrue(older.granted());
+    }
+
+    /**
+     * Unit test for TxLockManager: a wounded transaction that is not waiting
+     * is aborted at its next lock request.
+     */
+    @Test public void woundedHolderAbortsOnNextRequest() throws Exception {
+        locks = new TxLockManager(DeadlockPolicy.WOUND_WAIT);
+        locks.acquireLock(tid2, pid, Permissions.READ_WRITE);
+        Requester older = new Requester(tid1, Permissions.READ_ONLY);
+        try {
+            locks.acquireLock(tid2, new HeapPageId(1, 1), Permissions.READ_ONLY);
+            fail("wounded transaction got another lock");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+        locks.releaseLock(tid2);
+        assertTrue(older.granted());
+
+        // 伤只算到事务结束
+        locks.acquireLock(tid2, new HeapPageId(1, 1), Permissions.READ_ONLY);
+    }
+
+    /**
+     * Unit test for TxLockManager: a younger transaction waiting in the
+     * queue is wounded and aborted as soon as an older one queues behind it.
+     */
+    @Test public void woundWaitAbortsYoungerWaiter() throws Exception {
+        locks = new TxLockManager(DeadlockPolicy.WOUND_WAIT);
+        locks.acquireLock(tid1, pid, Permissions.READ_WRITE);
+        Requester younger = new Requester(tid3, Permissions.READ_WRITE);
+        Requester older = new Requester(tid2, Permissions.READ_WRITE);
+
+        younger.join(SETTLE);
+        assertTrue(younger.aborted);
+        locks.releaseLock(tid1);
+        assertTrue(older.granted());
+    }
+
+    /**
+     * Unit test for TxLockManager: under the timeout policy a wait is
+     * aborted after a while even without a deadlock.
+     */
+    @Test public void timeout() throws Exception {
+        locks = new TxLockManager(DeadlockPolicy.TIMEOUT);
+        locks.acquireLock(tid1, pid, Permissions.READ_WRITE);
+        Requester waiter = new Requester(tid2, Permissions.READ_ONLY);
+        waiter.join(2000);
+        assertTrue(waiter.aborted);
+        assertEquals(0, locks.getDeadlocks());
+    }
+
+    /**
+     * Unit test for LockMode: the compatibility matrix and upgrades.
+     */
+    @Test public void lockModes() {
+        assertTrue(LockMode.IX.compatibleWith(LockMode.IX));
+        assertTrue(LockMode.IS.compatibleWith(LockMode.SIX));
+        assertFalse(LockMode.S.compatibleWith(LockMode.IX));
+        assertFalse(LockMode.SIX.compatibleWith(LockMode.S));
+        assertFalse(LockMode.X.compatibleWith(LockMode.IS));
+        assertEquals(LockMode.SIX, LockMode.S.join(LockMode.IX));
+        assertEquals(LockMode.S, LockMode.IS.join(LockMode.S));
+        assertTrue(LockMode.SIX.covers(LockMode.S));
+        assertFalse(LockMode.S.covers(LockMode.IX));
+    }
+
+    /**
+     * Unit test for TxLockManager: page locks take intention locks on the
+     * table, so writers of different pages share it and a table reader
+     * waits for them.
+     */
+    @Test public void intentionLocks() throws Exception {
+        locks.acquireLock(tid1, pid, Permissions.READ_WRITE);
+        locks.acquireLock(tid2, new HeapPageId(1, 1), Permissions.READ_WRITE);
+        assertEquals(LockMode.IX, locks.getTableLock(tid1, 1));
+        assertEquals(LockMode.IX, locks.getTableLock(tid2, 1));
+
+        Requester scan = new Requester(tid3, new HeapPageId(1, 2), Permissions.READ_ONLY);
+        assertTrue(scan.granted()); // 另一页, IS和IX兼容
+        Thread t = new Thread(() -> {
+            try {
+                locks.acquireTableLock(tid3, 1, LockMode.S);
+            } catch (TransactionAbortedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        t.setDaemon(true);
+        t.start();
+        t.join(SETTLE);
+        assertTrue(t.isAlive());
+
+        locks.releaseLock(tid1);
+        locks.releaseLock(tid2);
+        t.join(1000);
+        assertEquals(LockMode.S, locks.getTableLock(tid3, 1));
+        assertTrue(locks.hasHoldsLock(tid3, pid));
+    }
+
+    /**
+     * Unit test for TxLockManager: past the threshold, page locks escalate
+     * to a table lock and later pages are not locked one by one.
+     */
+    @Test public void escalation() throws Exception {
+        locks.setEscalationThreshold(3);
+        for (int i = 0; i < 3; i++)
+            locks.acquireLock(tid1, new HeapPageId(1, i), Permissions.READ_ONLY);
+        assertEquals(LockMode.S, locks.getTableLock(tid1, 1));
+        assertEquals(1, locks.getEscalations());
+
+        PageId later = new HeapPageId(1, 10);
+        locks.acquireLock(tid1, later, Permissions.READ_ONLY);
+        assertTrue(locks.hasHoldsLock(tid1, later));
+        assertFalse(locks.getLockedPages(tid1).contains(later));
+
+        // 整张表都被读锁住了, 写任何一页都要等
+        Requester writer = new Requester(tid2, later, Permissions.READ_WRITE);
+        assertFalse(writer.granted());
+
+        // 写过的表升级成X; 表锁盖住的写页还是要记下来, 提交的时候要用
+        locks.acquireLock(tid1, new HeapPageId(1, 11), Permissions.READ_WRITE);
+        assertEquals(LockMode.X, locks.getTableLock(tid1, 1));
+        locks.acquireLock(tid1, new HeapPageId(1, 12), Permissions.READ_WRITE);
+        assertTrue(locks.getLockedPages(tid1).contains(new HeapPageId(1, 12)));
+
+        locks.releaseLock(tid1);
+        assertTrue(writer.granted());
+    }
+
+    /**
+     * Unit test for TxLockManager: asking again for a page already locked
+     * does not count towards escalation.
+     */
+    @Test public void repeatedRequestsDoNotEscalate() throws Exception {
+        locks.setEscalationThreshold(3);
+        for (int i = 0; i < 10; i++)
+            locks.acquireLock(tid1, pid, Permissions.READ_ONLY);
+        locks.acquireLock(tid1, pid, Permissions.READ_WRITE); // 升级也不算新锁
+        assertEquals(LockMode.IX, locks.getTableLock(tid1, 1));
+        assertEquals(0, locks.getEscalations());
+    }
+
+    /**
+     * Unit test for TxLockManager: escalating releases the page locks the
+     * table lock covers, but commit still finds the pages written.
+     */
+    @Test public void escalationReleasesPageLocks() throws Exception {
+        locks.setEscalationThreshold(3);
+        for (int i = 0; i < 3; i++)
+            locks.acquireLock(tid1, new HeapPageId(1, i), Permissions.READ_ONLY);
+        assertEquals(LockMode.S, locks.getTableLock(tid1, 1));
+        assertTrue(locks.getLockedPages(tid1).isEmpty());
+        assertTrue(locks.hasHoldsLock(tid1, pid));
+
+        locks.acquireLock(tid2, new HeapPageId(2, 0), Permissions.READ_ONLY);
+        locks.acquireLock(tid2, new HeapPageId(2, 1), Permissions.READ_WRITE);
+        locks.acquireLock(tid2, new HeapPageId(2, 2), Permissions.READ_ONLY);
+        assertEquals(LockMode.X, locks.getTableLock(tid2, 2));
+        assertEquals(Collections.singleton(new HeapPageId(2, 1)), locks.getLockedPages(tid2));
+
+        locks.releaseLock(tid1);
+        locks.releaseLock(tid2);
+        Requester reader = new Requester(tid3, new HeapPageId(2, 0), Permissions.READ_ONLY);
+        assertTrue(reader.granted());
+    }
+
+    /**
+     * Unit test for TxLockManager: tuple locks on different rows of one page
+     * do not conflict, locks on the same row do.
+     */
+    @Test public void tupleLocks() throws Exception {
+        RecordId r0 = new RecordId(pid, 0);
+        RecordId r1 = new RecordId(pid, 1);
+        locks.acquireTupleLock(tid1, r0, Permissions.READ_WRITE);
+        locks.acquireTupleLock(tid2, r1, Permissions.READ_WRITE);
+        assertFalse(locks.hasHoldsLock(tid1, pid)); // 页上只有IX
+
+        Thread t = new Thread(() -> {
+            try {
+                locks.acquireTupleLock(tid3, r0, Permissions.READ_ONLY);
+            } catch (TransactionAbortedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        t.setDaemon(true);
+        t.start();
+        t.join(SETTLE);
+        assertTrue(t.isAlive());
+
+        locks.releaseLock(tid1);
+        t.join(1000);
+        assertFalse(t.isAlive());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(TxLockManagerTest.class);
+    }
+}
@@ -161,6 +161,171 @@ public class LogTest extends SimpleDbTestBase {
             throw new RuntimeException("LogTest:setBeforeImage() not called? patch failed?");
     }
 
+    @Test public void TestNoForceCommitCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        Database.getBufferPool().setForceOnCommit(false);
+
+        // *** Test:
+        // with NO-FORCE, commit leaves the page in the buffer pool, and
+        // recovery must redo it from the log
+
+        Transaction t = new Transaction();
+        t.start();
+        insertRow(hf1, t, 1);
+        t.commit();
+
+        HeapPage onDisk = (HeapPage) hf1.readPage(new HeapPageId(hf1.getId(), 0));
+        if(onDisk.iterator().hasNext())
+            throw new RuntimeException("LogTest: NO-FORCE commit wrote the page");
+
+        crash();
+
+        t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        t.commit();
+    }
+
+    @Test public void TestGroupCommit()
+            throws Exception {
+        setup();
+        LogFile log = Database.getLogFile();
+        log.setGroupCommitDelay(5000);
+
+        // *** Test:
+        // concurrent committers share fsyncs
+        final int committers = 20;
+        java.util.concurrent.CountDownLatch go = new java.util.concurrent.CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        final List<Exception> errors = Collections.synchronizedList(new ArrayList<>());
+        for (int i = 0; i < committers; i++) {
+            Thread th = new Thread(() -> {
+                try {
+                    TransactionId tid = new TransactionId();
+                    go.await();
+                    log.logXactionBegin(tid);
+                    log.logCommit(tid);
+                } catch (Exception e) {
+                    errors.add(e);
+                }
+            });
+            th.start();
+            threads.add(th);
+        }
+        go.countDown();
+        for (Thread th : threads)
+            th.join();
+
+        assertTrue(errors.isEmpty());
+        assertEquals(2 * committers, log.getTotalRecords());
+        assertTrue(log.getFlushedBatchRecords() >= 2 * committers);
+        assertTrue("no commits were batched", log.getFlushBatches() < committers);
+    }
+
+    @Test public void TestPageLSN()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        LogFile log = Database.getLogFile();
+
+        // *** Test:
+        // logging an update stamps the page with its LSN, and forcing up to
+        // that LSN makes it durable without waiting for a commit
+        Transaction t = new Transaction();
+        t.start();
+        insertRow(hf1, t, 1);
+        Page p = Database.getBufferPool().getPage(t.getId(),
+                new HeapPageId(hf1.getId(), 0), Permissions.READ_ONLY);
+        assertEquals(-1, p.getLSN());
+
+        log.logWrite(t.getId(), p.getBeforeImage(), p);
+        long lsn = p.getLSN();
+        assertTrue(lsn >= 0);
+        assertTrue(lsn < log.getNextLSN());
+        log.forceUpTo(lsn);
+        assertTrue(log.getDurableLSN() > lsn);
+        t.commit();
+    }
+
+    @Test public void TestUpdateRecordIsDelta()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        LogFile log = Database.getLogFile();
+
+        // *** Test:
+        // an UPDATE record for a one-tuple change logs the changed bytes,
+        // not a before and an after image of the whole page
+        Transaction t = new Transaction();
+        t.start();
+        insertRow(hf1, t, 1);
+        Page p = Database.getBufferPool().getPage(t.getId(),
+                new HeapPageId(hf1.getId(), 0), Permissions.READ_ONLY);
+        long start = log.getNextLSN();
+        log.logWrite(t.getId(), p.getBeforeImage(), p);
+        long recordSize = log.getNextLSN() - start;
+        assertTrue("UPDATE record is " + recordSize + " bytes",
+                recordSize < BufferPool.getPageSize() / 10);
+        t.commit();
+
+        // and it still replays
+        crash();
+        t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        t.commit();
+    }
+
+    // delete the tuple whose first field is v1
+    void deleteRow(HeapFile hf, Transaction t, int v1)
+        throws DbException, TransactionAbortedException, IOException {
+        SeqScan scan = new SeqScan(t.getId(), hf.getId(), "");
+        scan.open();
+        while(scan.hasNext()){
+            Tuple tu = scan.next();
+            if(((IntField)tu.getField(0)).getValue() == v1){
+                Database.getBufferPool().deleteTuple(t.getId(), tu);
+                break;
+            }
+        }
+        scan.close();
+    }
+
+    @Test public void TestTupleLoggingCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        LogFile log = Database.getLogFile();
+        log.setTupleLogging(true);
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // with tuple logging, pages are logged as slot writes, and both
+        // redo and undo replay them
+        Transaction t1 = new Transaction();
+        t1.start();
+        deleteRow(hf1, t1, 1);
+        Database.getBufferPool().flushAllPages();
+        insertRow(hf1, t1, 3);
+        t1.commit();
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        deleteRow(hf1, t2, 2);
+        insertRow(hf1, t2, 4);
+        Database.getBufferPool().flushAllPages(); // XXX defeat NO-STEAL-based abort
+        insertRow(hf1, t2, 5);
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, false);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, true);
+        look(hf1, t, 4, false);
+        look(hf1, t, 5, false);
+        t.commit();
+    }
+
     @Test public void TestFlushAll()
             throws IOException, DbException, TransactionAbortedException {
         setup();
@@ -439,6 +604,190 @@ public class LogTest extends SimpleDbTestBase {
         t.commit();
     }
 
+    @Test public void TestRecoverTwice()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, -1);
+
+        // *** Test:
+        // a loser rolled back by recovery stays rolled back, even after
+        // a later transaction reuses its slot and the log is recovered again
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 2);
+        Database.getBufferPool().flushAllPages(); // XXX defeat NO-STEAL-based abort
+
+        crash();
+
+        doInsert(hf1, 3, -1); // goes into the slot t1 used
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, false);
+        look(hf1, t, 3, true);
+        t.commit();
+    }
+
+    @Test public void TestFuzzyCheckpoint()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        Database.getBufferPool().setForceOnCommit(false);
+
+        // *** Test:
+        // a checkpoint writes back pages of committed transactions but
+        // leaves the pages of running ones alone, and recovery still
+        // redoes commits that came after it
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 1);
+        t1.commit();
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        insertRow(hf2, t2, 2);
+
+        Database.getLogFile().logCheckpoint();
+
+        HeapPage onDisk = (HeapPage) hf1.readPage(new HeapPageId(hf1.getId(), 0));
+        if(!onDisk.iterator().hasNext())
+            throw new RuntimeException("LogTest: checkpoint did not write committed page");
+        onDisk = (HeapPage) hf2.readPage(new HeapPageId(hf2.getId(), 0));
+        if(onDisk.iterator().hasNext())
+            throw new RuntimeException("LogTest: checkpoint wrote page of running transaction");
+
+        Transaction t3 = new Transaction();
+        t3.start();
+        insertRow(hf1, t3, 3);
+        t3.commit();
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 3, true);
+        look(hf2, t, 2, false);
+        t.commit();
+    }
+
+    @Test public void TestCommitBeforeUnlock()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        // 放锁的时候记下日志里这个事务是不是已经提交了
+        Set<TransactionId> activeAtUnlock = Collections.synchronizedSet(new HashSet<>());
+        Database.resetBufferPool(new BufferPool(BufferPool.DEFAULT_PAGES) {
+            @Override
+            public void releaseLocks(TransactionId tid) {
+                if (Database.getLogFile().isActive(tid))
+                    activeAtUnlock.add(tid);
+                super.releaseLocks(tid);
+            }
+        }).setForceOnCommit(false);
+
+        // *** Test:
+        // with NO-FORCE the committed page is only in the pool, so the
+        // COMMIT record must be in the log before the transaction's locks
+        // are released and another transaction can read the page
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 1);
+        t1.commit();
+        assertFalse(activeAtUnlock.contains(t1.getId()));
+    }
+
+    @Test public void TestParallelRedo()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        Database.getBufferPool().setForceOnCommit(false);
+
+        // *** Test:
+        // redo split among several threads replays every committed change
+        // of every page, in order
+
+        for (int i = 0; i < 20; i++) {
+            Transaction t = new Transaction();
+            t.start();
+            for (int j = 0; j < 60; j++)
+                insertRow(i % 2 == 0 ? hf1 : hf2, t, i * 100 + j);
+            t.commit();
+        }
+        Transaction t = new Transaction();
+        t.start();
+        deleteRow(hf1, t, 5);
+        deleteRow(hf2, t, 105);
+        t.commit();
+
+        Database.reset();
+        hf1 = Utility.openHeapFile(2, file1);
+        hf2 = Utility.openHeapFile(2, file2);
+        Database.getLogFile().setRedoThreads(4);
+        Database.getLogFile().recover();
+
+        assertTrue(hf1.numPages() > 1);
+        t = new Transaction();
+        t.start();
+        for (int i = 0; i < 20; i++) {
+            for (int j = 0; j < 60; j += 7) {
+                int v = i * 100 + j;
+                look(i % 2 == 0 ? hf1 : hf2, t, v, v != 5 && v != 105);
+            }
+        }
+        t.commit();
+    }
+
+    @Test public void TestSegmentedLog()
+            throws IOException, DbException, TransactionAbortedException {
+        LogFile.setSegmentSize(1024);
+        try {
+            setup();
+            Database.getBufferPool().setForceOnCommit(false);
+
+            // *** Test:
+            // a log spread over many small segments, with records that
+            // span two of them, is truncated by deleting whole segments
+            // and still recovers
+
+            for (int i = 0; i < 30; i++) {
+                Transaction t = new Transaction();
+                t.start();
+                for (int j = 0; j < 10; j++)
+                    insertRow(hf1, t, i * 100 + j);
+                t.commit();
+            }
+            int segments = Database.getLogFile().getNumSegments();
+            assertTrue(segments > 3);
+            assertTrue(new File("log.00000000").exists());
+
+            Database.getLogFile().logCheckpoint();
+            assertTrue(Database.getLogFile().getNumSegments() <= 2);
+            assertFalse(new File("log.00000000").exists());
+
+            Transaction t = new Transaction();
+            t.start();
+            for (int j = 0; j < 10; j++)
+                insertRow(hf2, t, j);
+            t.commit();
+        } finally {
+            LogFile.resetSegmentSize();
+        }
+
+        crash(); // the log keeps its own segment size
+
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = 0; i < 30; i += 3)
+            look(hf1, t, i * 100 + i % 10, true);
+        for (int j = 0; j < 10; j++)
+            look(hf2, t, j, true);
+        t.commit();
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(LogTest.class);
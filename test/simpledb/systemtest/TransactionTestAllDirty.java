@@ -6,6 +6,8 @@ import org.junit.Test;
 
 import simpledb.common.Database;
 import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
 import simpledb.storage.*;
 import simpledb.transaction.Transaction;
 import simpledb.transaction.TransactionAbortedException;
@@ -17,7 +19,7 @@ public class TransactionTestAllDirty extends SimpleDbTestBase {
             throws IOException, DbException, TransactionAbortedException {
         // Allocate a file with ~10 pages of data
         HeapFile f = SystemTestUtil.createRandomHeapFile(2, 512*10, null, null);
-        Database.resetBufferPool(1);
+        Database.resetBufferPool(1).setSteal(false);
 
         // BEGIN TRANSACTION
         Transaction t = new Transaction();
@@ -34,6 +36,53 @@ public class TransactionTestAllDirty extends SimpleDbTestBase {
         t.commit();
     }
 
+    /** With STEAL the dirty page is logged and written back, so the scan
+     * succeeds; aborting afterwards must still undo the insert.
+     */
+    @Test public void testAllDirtySteals()
+            throws IOException, DbException, TransactionAbortedException {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 512*10, null, null);
+        Database.resetBufferPool(1);
+
+        Transaction t = new Transaction();
+        t.start();
+        AbortEvictionTest.insertRow(f, t);
+        assertTrue(AbortEvictionTest.findMagicTuple(f, t));
+        t.abort();
+
+        t = new Transaction();
+        t.start();
+        assertFalse(AbortEvictionTest.findMagicTuple(f, t));
+        t.commit();
+    }
+
+    /** A stolen page read back into the pool by its own transaction holds
+     * the uncommitted insert; aborting through the buffer pool must drop it
+     * along with rolling back the disk.
+     */
+    @Test public void testStolenPageReadAgain()
+            throws IOException, DbException, TransactionAbortedException {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 512*10, null, null);
+        BufferPool bp = Database.resetBufferPool(1);
+
+        Transaction t = new Transaction();
+        t.start();
+        Tuple value = new Tuple(Utility.getTupleDesc(2));
+        value.setField(0, new IntField(-42));
+        value.setField(1, new IntField(-43));
+        bp.insertTuple(t.getId(), f.getId(), value);
+        PageId dirtied = value.getRecordId().getPageId();
+        PageId other = new HeapPageId(f.getId(), (dirtied.getPageNumber() + 1) % f.numPages());
+        bp.getPage(t.getId(), other, Permissions.READ_ONLY); // 偷走插入的那一页
+        bp.getPage(t.getId(), dirtied, Permissions.READ_ONLY); // 再读回来
+        bp.transactionComplete(t.getId(), false);
+
+        t = new Transaction();
+        t.start();
+        assertFalse(AbortEvictionTest.findMagicTuple(f, t));
+        t.commit();
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(TransactionTestAllDirty.class);